@@ -0,0 +1,263 @@
+package maps;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+public class MyCompactMap<K, V> implements MyMap<K, V> {
+
+    // Snapshot of a pair: removals move pairs between slots and promote() drops the table, so an entry
+    // cannot point into it; setValue writes through put while the key is still mapped
+    private class InlineEntry implements MyMap.Entry<K, V> {
+
+        private final K key;
+        private V value;
+
+        private InlineEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(getKey(), ((MyMap.Entry) o).getKey())
+                    && Objects.equals(getValue(), ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        // Once the key has been removed the entry is detached, as in MyHashMap, and only it changes
+        @Override
+        public V setValue(V value) {
+            V toReturn = this.value;
+            this.value = value;
+            return containsKey(key) ? put(key, value) : toReturn;
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private class InlineIterator implements Iterator<MyMap.Entry<K, V>> {
+
+        private int next;
+        private final int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size << 1;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next >= size << 1) {
+                throw new NoSuchElementException();
+            }
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            Entry<K, V> toReturn = new InlineEntry((K) table[next], (V) table[next + 1]);
+            next += 2;
+            return toReturn;
+        }
+    }
+
+    private static final int DEFAULT_PROMOTE_THRESHOLD = 8;
+    private static final int INITIAL_INLINE_CAPACITY = 2;
+
+    // Keys and values interleaved: k0, v0, k1, v1, ...; allocated on first put
+    private Object[] table;
+    private MyHashMap<K, V> promoted;
+    private final int promoteThreshold;
+    private int size;
+    private int modCount;
+
+    public MyCompactMap() {
+        this(DEFAULT_PROMOTE_THRESHOLD);
+    }
+
+    public MyCompactMap(int promoteThreshold) {
+        if (promoteThreshold <= 0) {
+            throw new IllegalArgumentException("Illegal promote threshold: " + promoteThreshold);
+        }
+        this.promoteThreshold = promoteThreshold;
+    }
+
+    @Override
+    public void clear() {
+        table = null;
+        promoted = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        if (promoted != null) {
+            return promoted.containsKey(key);
+        }
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(V value) {
+        if (promoted != null) {
+            return promoted.containsValue(value);
+        }
+        for (int i = 1; i < size << 1; i += 2) {
+            if (Objects.equals(table[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return promoted != null ? promoted.entryIterator() : new InlineIterator();
+    }
+
+    @Override
+    public V get(K key) {
+        if (promoted != null) {
+            return promoted.get(key);
+        }
+        int index = indexOf(key);
+        return index < 0 ? null : (V) table[index + 1];
+    }
+
+    public boolean isCompact() {
+        return promoted == null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (promoted != null) {
+            return promoted.put(key, value);
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            V toReturn = (V) table[index + 1];
+            table[index + 1] = value;
+            return toReturn;
+        }
+        if (size == promoteThreshold) {
+            promote();
+            return promoted.put(key, value);
+        }
+        if (table == null) {
+            table = new Object[Math.min(INITIAL_INLINE_CAPACITY, promoteThreshold) << 1];
+        } else if (size << 1 == table.length) {
+            Object[] newTable = new Object[Math.min(size << 1, promoteThreshold) << 1];
+            System.arraycopy(table, 0, newTable, 0, table.length);
+            table = newTable;
+        }
+        table[size << 1] = key;
+        table[(size << 1) + 1] = value;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (promoted != null) {
+            V toReturn = promoted.remove(key);
+            // Demoting at half the threshold keeps a map hovering around it from flipping back and forth
+            if (promoted.size() <= promoteThreshold >> 1) {
+                demote();
+            }
+            return toReturn;
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V toReturn = (V) table[index + 1];
+        int last = (size - 1) << 1;
+        table[index] = table[last];
+        table[index + 1] = table[last + 1];
+        table[last] = null;
+        table[last + 1] = null;
+        size--;
+        modCount++;
+        return toReturn;
+    }
+
+    @Override
+    public int size() {
+        return promoted != null ? promoted.size() : size;
+    }
+
+    @Override
+    public String toString() {
+        if (promoted != null) {
+            return promoted.toString();
+        }
+        StringBuilder toReturn = new StringBuilder("{");
+        for (int i = 0; i < size << 1; i += 2) {
+            if (i > 0) {
+                toReturn.append(", ");
+            }
+            toReturn.append(table[i]).append('=').append(table[i + 1]);
+        }
+        return toReturn.append('}').toString();
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size << 1; i += 2) {
+            if (Objects.equals(table[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void promote() {
+        MyHashMap<K, V> map = new MyHashMap<>((int) Math.ceil((promoteThreshold << 1) / 0.75));
+        for (int i = 0; i < size << 1; i += 2) {
+            map.put((K) table[i], (V) table[i + 1]);
+        }
+        promoted = map;
+        table = null;
+        size = 0;
+        modCount++;
+    }
+
+    private void demote() {
+        int count = promoted.size();
+        Object[] newTable = count == 0 ? null : new Object[Math.max(count, INITIAL_INLINE_CAPACITY) << 1];
+        Iterator<Entry<K, V>> iter = promoted.entryIterator();
+        for (int i = 0; iter.hasNext(); i += 2) {
+            Entry<K, V> curEntry = iter.next();
+            newTable[i] = curEntry.getKey();
+            newTable[i + 1] = curEntry.getValue();
+        }
+        table = newTable;
+        size = count;
+        promoted = null;
+        modCount++;
+    }
+}
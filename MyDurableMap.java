@@ -0,0 +1,568 @@
+package maps;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Every put/remove/clear is logged before it returns. By default a writer also waits for the fsync
+// that covers its record, so throughput is bounded by fsync latency times batch size: a device that
+// forces in ~0.5 ms caps a handful of threads at some 10-20k writes/s, and a group commit delay only
+// helps once there are enough writers to fill it. With setSyncOnWrite(false) writers return as soon
+// as the record is queued, the flusher still forces once per batch (or per group commit delay), and
+// a crash loses at most the batch in flight; sync() waits for everything written so far.
+public class MyDurableMap<K, V> implements MyMap<K, V>, Closeable {
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte NULL_TAG = 0;
+    private static final byte INT_TAG = 1;
+    private static final byte LONG_TAG = 2;
+    private static final byte STRING_TAG = 3;
+    private static final byte SERIALIZED_TAG = 4;
+    private static final int HEADER_SIZE = 8;
+    private static final String LOG_FILE = "map.wal";
+    private static final String SNAPSHOT_FILE = "map.snapshot";
+
+    private class DurableEntry implements MyMap.Entry<K, V> {
+
+        private final MyMap.Entry<K, V> entry;
+
+        private DurableEntry(MyMap.Entry<K, V> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(getKey(), ((MyMap.Entry) o).getKey())
+                    && Objects.equals(getValue(), ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return entry.getKey();
+        }
+
+        @Override
+        public V getValue() {
+            synchronized (MyDurableMap.this) {
+                return entry.getValue();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        // Logged like any other put
+        @Override
+        public V setValue(V value) {
+            return put(entry.getKey(), value);
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private final MyMap<K, V> map;
+    private final Path snapshotPath;
+    private final FileChannel channel;
+    private final long groupCommitDelayNanos;
+    private final Thread flusher;
+    private volatile boolean syncOnWrite = true;
+
+    // Guarded by logLock
+    private final Object logLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean closed;
+
+    public MyDurableMap(MyMap<K, V> map, Path directory) throws IOException {
+        this(map, directory, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public MyDurableMap(MyMap<K, V> map, Path directory, long groupCommitDelay, TimeUnit unit)
+            throws IOException {
+        if (map == null || !map.isEmpty()) {
+            throw new IllegalArgumentException("Recovery requires an empty map");
+        }
+        if (groupCommitDelay < 0) {
+            throw new IllegalArgumentException("Illegal group commit delay: " + groupCommitDelay);
+        }
+        Files.createDirectories(directory);
+        this.map = map;
+        this.snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        this.groupCommitDelayNanos = unit.toNanos(groupCommitDelay);
+        this.channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loadSnapshot();
+            replayLog();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.flusher = new Thread(this::flushLoop, "MyDurableMap-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public void clear() {
+        byte[] record = encode(CLEAR, null, null);
+        long seq;
+        synchronized (this) {
+            synchronized (logLock) {
+                checkWritable();
+                map.clear();
+                seq = append(record);
+            }
+        }
+        awaitWrite(seq);
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean containsValue(V value) {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        byte[] record = encode(PUT, key, value);
+        long seq;
+        V toReturn;
+        synchronized (this) {
+            synchronized (logLock) {
+                checkWritable();
+                toReturn = map.put(key, value);
+                seq = append(record);
+            }
+        }
+        awaitWrite(seq);
+        return toReturn;
+    }
+
+    @Override
+    public V remove(K key) {
+        byte[] record = encode(REMOVE, key, null);
+        long seq;
+        V toReturn;
+        synchronized (this) {
+            synchronized (logLock) {
+                checkWritable();
+                if (!map.containsKey(key)) {
+                    return null;
+                }
+                toReturn = map.remove(key);
+                seq = append(record);
+            }
+        }
+        awaitWrite(seq);
+        return toReturn;
+    }
+
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    @Override
+    public synchronized int size() {
+        return map.size();
+    }
+
+    // Waits until every mutation made so far is on disk
+    public void sync() {
+        long seq;
+        synchronized (logLock) {
+            seq = appendedSeq;
+        }
+        awaitDurable(seq);
+    }
+
+    // Steps under the map's lock; setValue on an entry is logged like a put
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        Iterator<Entry<K, V>> iter;
+        synchronized (this) {
+            iter = map.entryIterator();
+        }
+        return new Iterator<Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                synchronized (MyDurableMap.this) {
+                    return iter.hasNext();
+                }
+            }
+
+            @Override
+            public Entry<K, V> next() {
+                synchronized (MyDurableMap.this) {
+                    return new DurableEntry(iter.next());
+                }
+            }
+        };
+    }
+
+    public synchronized void checkpoint() throws IOException {
+        sync();
+        Path tmpPath = snapshotPath.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ObjectOutputStream oos = new ObjectOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out)));
+            oos.writeInt(map.size());
+            Iterator<Entry<K, V>> iter = map.entryIterator();
+            while (iter.hasNext()) {
+                Entry<K, V> curEntry = iter.next();
+                oos.writeObject(curEntry.getKey());
+                oos.writeObject(curEntry.getValue());
+            }
+            oos.flush();
+            out.force(true);
+        }
+        Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // The rename has to be durable before the log it replaces is cut
+        syncDirectory(snapshotPath.getParent());
+        // Every logged mutation is now in the snapshot and no writer can append
+        synchronized (logLock) {
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (logLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            logLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (logLock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+
+    // Callers hold logLock and have checked the log is writable before changing the map, so a change
+    // is either rejected untouched or queued together with its record
+    private long append(byte[] record) {
+        pending.write(record, 0, record.length);
+        logLock.notifyAll();
+        return ++appendedSeq;
+    }
+
+    private void awaitWrite(long seq) {
+        if (syncOnWrite) {
+            awaitDurable(seq);
+        }
+    }
+
+    private void awaitDurable(long seq) {
+        boolean interrupted = false;
+        synchronized (logLock) {
+            while (durableSeq < seq) {
+                checkWritable();
+                try {
+                    logLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkWritable() {
+        if (failure != null) {
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    // Whatever accumulates while the previous batch is being forced goes out with a single fsync
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            synchronized (logLock) {
+                try {
+                    while (pending.size() == 0 && !closed) {
+                        logLock.wait();
+                    }
+                    // Appends keep notifying, so wait out the whole delay rather than the next write
+                    long deadline = System.nanoTime() + groupCommitDelayNanos;
+                    for (long remaining = groupCommitDelayNanos; remaining > 0 && !closed;
+                         remaining = deadline - System.nanoTime()) {
+                        TimeUnit.NANOSECONDS.timedWait(logLock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.size() == 0) {
+                    logLock.notifyAll();
+                    return;
+                }
+                batch = pending.toByteArray();
+                batchSeq = appendedSeq;
+                pending = new ByteArrayOutputStream(batch.length);
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                long position = channel.size();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (logLock) {
+                    failure = e;
+                    logLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (logLock) {
+                durableSeq = batchSeq;
+                logLock.notifyAll();
+            }
+        }
+    }
+
+    // Record body: op, then key and value for PUT or the key for REMOVE. Integer, Long and String
+    // are written inline behind a one-byte tag; other types are serialized individually
+    private static byte[] encode(byte op, Object key, Object value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeLong(0);
+            out.writeByte(op);
+            if (op != CLEAR) {
+                writeObject(out, key);
+            }
+            if (op == PUT) {
+                writeObject(out, value);
+            }
+            byte[] record = bos.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+            ByteBuffer.wrap(record).putInt(record.length - HEADER_SIZE).putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to encode log record", e);
+        }
+    }
+
+    private static void writeObject(DataOutputStream out, Object o) throws IOException {
+        if (o == null) {
+            out.writeByte(NULL_TAG);
+        } else if (o instanceof Integer) {
+            out.writeByte(INT_TAG);
+            out.writeInt((Integer) o);
+        } else if (o instanceof Long) {
+            out.writeByte(LONG_TAG);
+            out.writeLong((Long) o);
+        } else if (o instanceof String) {
+            byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING_TAG);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(o);
+            }
+            out.writeByte(SERIALIZED_TAG);
+            out.writeInt(bos.size());
+            bos.writeTo(out);
+        }
+    }
+
+    private static Object readObject(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL_TAG:
+                return null;
+            case INT_TAG:
+                return in.readInt();
+            case LONG_TAG:
+                return in.readLong();
+            case STRING_TAG:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case SERIALIZED_TAG:
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Corrupted log record", e);
+                }
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Makes renames in the directory durable; a no-op where directories cannot be opened
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Windows
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            for (int count = ois.readInt(); count > 0; count--) {
+                map.put((K) ois.readObject(), (V) ois.readObject());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Corrupted snapshot " + snapshotPath, e);
+        }
+    }
+
+    // Replay stops at the first torn or corrupted record, which is then cut off
+    private void replayLog() throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position + HEADER_SIZE <= length) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int recordLength = header.getInt();
+            int checksum = header.getInt();
+            if (recordLength <= 0 || position + HEADER_SIZE + recordLength > length) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(recordLength);
+            readFully(body, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            applyRecord(body.array());
+            position += HEADER_SIZE + recordLength;
+        }
+        if (position < length) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private void applyRecord(byte[] body) throws IOException {
+        if (body[0] == (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8)) {
+            applyLegacyRecord(body);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        switch (op) {
+            case PUT:
+                map.put((K) readObject(in), (V) readObject(in));
+                break;
+            case REMOVE:
+                map.remove((K) readObject(in));
+                break;
+            case CLEAR:
+                map.clear();
+                break;
+            default:
+                throw new IOException("Unknown log record type: " + op);
+        }
+    }
+
+    // Logs written before the compact format hold one object stream per record
+    private void applyLegacyRecord(byte[] body) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(body))) {
+            byte op = ois.readByte();
+            switch (op) {
+                case PUT:
+                    map.put((K) ois.readObject(), (V) ois.readObject());
+                    break;
+                case REMOVE:
+                    map.remove((K) ois.readObject());
+                    break;
+                case CLEAR:
+                    map.clear();
+                    break;
+                default:
+                    throw new IOException("Unknown log record type: " + op);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Corrupted log record", e);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package maps;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MyExpiringHashMap<K, V> implements MyMap<K, V> {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 6;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static class TimedEntry<K, V> implements MyMap.Entry<K, V> {
+
+        private final K key;
+        private V value;
+        private long writeDeadline = NO_DEADLINE;
+        private long deadline = NO_DEADLINE;
+        private int bucket = -1;
+        private TimedEntry<K, V> prev;
+        private TimedEntry<K, V> next;
+
+        private TimedEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(key, ((MyMap.Entry) o).getKey())
+                    && Objects.equals(value, ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        // Replacing the value through an entry does not restart its time to live
+        @Override
+        public V setValue(V value) {
+            V toReturn = this.value;
+            this.value = value;
+            return toReturn;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private class LiveEntryIterator implements Iterator<MyMap.Entry<K, V>> {
+
+        private final Iterator<Entry<K, TimedEntry<K, V>>> iter = map.entryIterator();
+        private final long now = now();
+        private TimedEntry<K, V> nextEntry = advance();
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (nextEntry == null) {
+                throw new NoSuchElementException();
+            }
+            TimedEntry<K, V> toReturn = nextEntry;
+            nextEntry = advance();
+            return toReturn;
+        }
+
+        private TimedEntry<K, V> advance() {
+            while (iter.hasNext()) {
+                TimedEntry<K, V> curEntry = iter.next().getValue();
+                if (curEntry.deadline > now) {
+                    return curEntry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final MyHashMap<K, TimedEntry<K, V>> map = new MyHashMap<>();
+    private final long origin = System.nanoTime();
+    private final long tickNanos;
+    // LEVELS wheels of WHEEL_SIZE buckets each, allocated with the first expiring entry
+    private TimedEntry<K, V>[] wheel;
+    private long currentTick;
+    private long expireAfterWriteNanos = NO_DEADLINE;
+    private long expireAfterAccessNanos = NO_DEADLINE;
+    private ScheduledExecutorService cleaner;
+
+    public MyExpiringHashMap() {
+        this.tickNanos = DEFAULT_TICK_NANOS;
+    }
+
+    public MyExpiringHashMap(long tick, TimeUnit unit) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Illegal tick: " + tick);
+        }
+        this.tickNanos = unit.toNanos(tick);
+    }
+
+    public synchronized MyExpiringHashMap<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWriteNanos = toNanos(duration, unit);
+        return this;
+    }
+
+    public synchronized MyExpiringHashMap<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccessNanos = toNanos(duration, unit);
+        return this;
+    }
+
+    @Override
+    public synchronized void clear() {
+        map.clear();
+        wheel = null;
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        long now = now();
+        advance(now);
+        TimedEntry<K, V> entry = map.get(key);
+        return entry != null && entry.deadline > now;
+    }
+
+    @Override
+    public synchronized boolean containsValue(V value) {
+        Iterator<Entry<K, V>> iter = new LiveEntryIterator();
+        while (iter.hasNext()) {
+            if (Objects.equals(iter.next().getValue(), value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Iterator<Entry<K, V>> entryIterator() {
+        advance(now());
+        return new LiveEntryIterator();
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        long now = now();
+        advance(now);
+        TimedEntry<K, V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.deadline <= now) {
+            expire(entry);
+            return null;
+        }
+        if (expireAfterAccessNanos != NO_DEADLINE) {
+            reschedule(entry, Math.min(entry.writeDeadline, deadline(now, expireAfterAccessNanos)));
+        }
+        return entry.value;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        return put(key, value, deadline(now(), expireAfterWriteNanos));
+    }
+
+    public synchronized V put(K key, V value, long ttl, TimeUnit unit) {
+        return put(key, value, deadline(now(), toNanos(ttl, unit)));
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        long now = now();
+        advance(now);
+        TimedEntry<K, V> entry = map.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        unlink(entry);
+        return entry.deadline > now ? entry.value : null;
+    }
+
+    // Counts entries the wheel has not dropped yet, which may include ones that expired within the last tick
+    @Override
+    public synchronized int size() {
+        advance(now());
+        return map.size();
+    }
+
+    public synchronized void cleanUp() {
+        advance(now());
+    }
+
+    public synchronized void startCleaner(long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Illegal cleaning period: " + period);
+        }
+        stopCleaner();
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MyExpiringHashMap-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::cleanUp, period, period, unit);
+    }
+
+    public synchronized void stopCleaner() {
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+            cleaner = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder toReturn = new StringBuilder("{");
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            toReturn.append(iter.next());
+            if (iter.hasNext()) {
+                toReturn.append(", ");
+            }
+        }
+        return toReturn.append('}').toString();
+    }
+
+    private V put(K key, V value, long writeDeadline) {
+        long now = now();
+        advance(now);
+        TimedEntry<K, V> entry = map.get(key);
+        V toReturn = null;
+        if (entry == null) {
+            entry = new TimedEntry<>(key, value);
+            map.put(key, entry);
+        } else {
+            toReturn = entry.deadline > now ? entry.value : null;
+            entry.value = value;
+        }
+        entry.writeDeadline = writeDeadline;
+        reschedule(entry, Math.min(writeDeadline, deadline(now, expireAfterAccessNanos)));
+        return toReturn;
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    private static long toNanos(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Illegal duration: " + duration);
+        }
+        return unit.toNanos(duration);
+    }
+
+    private static long deadline(long now, long ttlNanos) {
+        return ttlNanos == NO_DEADLINE || now + ttlNanos < 0 ? NO_DEADLINE : now + ttlNanos;
+    }
+
+    // Drains every bucket the clock passed since the last call, coarse wheels cascading into finer ones
+    private void advance(long now) {
+        long nowTick = now / tickNanos;
+        if (nowTick <= currentTick) {
+            return;
+        }
+        long prevTick = currentTick;
+        currentTick = nowTick;
+        if (wheel == null) {
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * WHEEL_BITS;
+            long prev = prevTick >>> shift;
+            long cur = nowTick >>> shift;
+            if (cur == prev) {
+                break;
+            }
+            long buckets = Math.min(cur - prev + 1, WHEEL_SIZE);
+            for (long i = 0; i < buckets; i++) {
+                drain(level * WHEEL_SIZE + (int) ((prev + i) & WHEEL_MASK), now);
+            }
+        }
+    }
+
+    private void drain(int bucket, long now) {
+        TimedEntry<K, V> curEntry = wheel[bucket];
+        wheel[bucket] = null;
+        while (curEntry != null) {
+            TimedEntry<K, V> next = curEntry.next;
+            curEntry.prev = null;
+            curEntry.next = null;
+            curEntry.bucket = -1;
+            if (curEntry.deadline <= now) {
+                map.remove(curEntry.key);
+            } else {
+                schedule(curEntry);
+            }
+            curEntry = next;
+        }
+    }
+
+    private void expire(TimedEntry<K, V> entry) {
+        map.remove(entry.key);
+        unlink(entry);
+    }
+
+    private void reschedule(TimedEntry<K, V> entry, long deadline) {
+        unlink(entry);
+        entry.deadline = deadline;
+        schedule(entry);
+    }
+
+    private void schedule(TimedEntry<K, V> entry) {
+        if (entry.deadline == NO_DEADLINE) {
+            return;
+        }
+        if (wheel == null) {
+            wheel = new TimedEntry[LEVELS * WHEEL_SIZE];
+        }
+        long deadlineTick = Math.max(currentTick + 1, (entry.deadline + tickNanos - 1) / tickNanos);
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << WHEEL_BITS * (level + 1)) {
+            level++;
+        }
+        int bucket = level * WHEEL_SIZE + (int) ((deadlineTick >>> level * WHEEL_BITS) & WHEEL_MASK);
+        entry.bucket = bucket;
+        entry.next = wheel[bucket];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        wheel[bucket] = entry;
+    }
+
+    private void unlink(TimedEntry<K, V> entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        if (entry.prev == null) {
+            wheel[entry.bucket] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = -1;
+    }
+}
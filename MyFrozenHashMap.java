@@ -0,0 +1,380 @@
+package maps;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// Immutable map over a minimal perfect hash: hash-and-displace (CHD) with one pilot per bucket of
+// about BUCKET_LOAD keys. Keys and values sit in one packed array, so a hit costs exactly one probe.
+public final class MyFrozenHashMap<K, V> implements MyMap<K, V>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BUCKET_LOAD = 4;
+    private static final int MAX_PILOT = 1 << 24;
+
+    private class FrozenEntry implements MyMap.Entry<K, V> {
+
+        private final int index;
+
+        private FrozenEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(getKey(), ((MyMap.Entry) o).getKey())
+                    && Objects.equals(getValue(), ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return (K) (index < slots ? table[index << 1] : overflow[index - slots << 1]);
+        }
+
+        @Override
+        public V getValue() {
+            return (V) (index < slots ? table[(index << 1) + 1] : overflow[(index - slots << 1) + 1]);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Frozen map is immutable");
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private class EntryIterator implements Iterator<MyMap.Entry<K, V>> {
+
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return new FrozenEntry(next++);
+        }
+    }
+
+    private long seed;
+    // Per bucket: displacement tried against the key hash, or ~slot for buckets holding a single key
+    private int[] pilots;
+    // Keys and values interleaved by slot: k0, v0, k1, v1, ...; a hit reads one cache line
+    private Object[] table;
+    private int slots;
+    // Keys sharing a hash code with a key in table cannot be told apart by any pilot; kept interleaved
+    // k0, v0, ... and sorted by hash code, only searched when the key's hash code is listed
+    private Object[] overflow;
+    private int[] overflowHashes;
+    private int size;
+
+    MyFrozenHashMap(MyMap<K, V> source) {
+        Object[] srcKeys = new Object[source.size()];
+        Object[] srcValues = new Object[srcKeys.length];
+        int count = 0;
+        Iterator<Entry<K, V>> iter = source.entryIterator();
+        while (iter.hasNext()) {
+            Entry<K, V> curEntry = iter.next();
+            if (count == srcKeys.length) {
+                srcKeys = Arrays.copyOf(srcKeys, count + 1 << 1);
+                srcValues = Arrays.copyOf(srcValues, srcKeys.length);
+            }
+            srcKeys[count] = curEntry.getKey();
+            srcValues[count++] = curEntry.getValue();
+        }
+        build(srcKeys, srcValues, count);
+    }
+
+    private MyFrozenHashMap(Object[] srcKeys, Object[] srcValues, int count) {
+        build(srcKeys, srcValues, count);
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Frozen map is immutable");
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(V value) {
+        for (int i = 1; i < table.length; i += 2) {
+            if (Objects.equals(table[i], value)) {
+                return true;
+            }
+        }
+        for (int i = 1; i < overflow.length; i += 2) {
+            if (Objects.equals(overflow[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new EntryIterator();
+    }
+
+    @Override
+    public V get(K key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        return (V) (index < slots ? table[(index << 1) + 1] : overflow[(index - slots << 1) + 1]);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException("Frozen map is immutable");
+    }
+
+    @Override
+    public V remove(K key) {
+        throw new UnsupportedOperationException("Frozen map is immutable");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder toReturn = new StringBuilder("{");
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            toReturn.append(iter.next());
+            if (iter.hasNext()) {
+                toReturn.append(", ");
+            }
+        }
+        return toReturn.append('}').toString();
+    }
+
+    // Slot of the key, or slots + n for the n-th overflow entry, -1 when absent
+    private int indexOf(Object key) {
+        int hash = Objects.hashCode(key);
+        if (slots > 0) {
+            int slot = slotOf(fingerprint(hash));
+            if (Objects.equals(table[slot << 1], key)) {
+                return slot;
+            }
+        }
+        if (overflowHashes.length == 0) {
+            return -1;
+        }
+        int pos = Arrays.binarySearch(overflowHashes, hash);
+        if (pos < 0) {
+            return -1;
+        }
+        while (pos > 0 && overflowHashes[pos - 1] == hash) {
+            pos--;
+        }
+        for (; pos < overflowHashes.length && overflowHashes[pos] == hash; pos++) {
+            if (Objects.equals(overflow[pos << 1], key)) {
+                return slots + pos;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(long fingerprint) {
+        long hash = mix(fingerprint ^ seed);
+        int pilot = pilots[bucketOf(hash, pilots.length)];
+        return pilot < 0 ? ~pilot : position(hash, pilot, slots);
+    }
+
+    private void build(Object[] srcKeys, Object[] srcValues, int count) {
+        long[] fingerprints = new long[count];
+        // Sorting (hash code, index) pairs groups equal hash codes; the first of each group is hashed
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            int hash = Objects.hashCode(srcKeys[i]);
+            fingerprints[i] = fingerprint(hash);
+            order[i] = (long) hash << 32 | i;
+        }
+        Arrays.sort(order);
+        int[] hashed = new int[count];
+        int[] spilled = new int[count];
+        int hashedCount = 0;
+        int overflowCount = 0;
+        for (int i = 0; i < count; i++) {
+            int index = (int) order[i];
+            if (i > 0 && order[i] >> 32 == order[i - 1] >> 32) {
+                spilled[overflowCount++] = index;
+            } else {
+                hashed[hashedCount++] = index;
+            }
+        }
+        overflow = new Object[overflowCount << 1];
+        overflowHashes = new int[overflowCount];
+        for (int i = 0; i < overflowCount; i++) {
+            int index = spilled[i];
+            overflow[i << 1] = srcKeys[index];
+            overflow[(i << 1) + 1] = srcValues[index];
+            overflowHashes[i] = Objects.hashCode(srcKeys[index]);
+        }
+        slots = hashedCount;
+        table = new Object[hashedCount << 1];
+        size = count;
+        for (long attempt = 0; ; attempt++) {
+            seed = mix(attempt * 0x9E3779B97F4A7C15L + 1);
+            if (place(srcKeys, srcValues, fingerprints, hashed, hashedCount)) {
+                return;
+            }
+        }
+    }
+
+    // Places buckets largest first, searching each for a pilot that lands all its keys on free slots
+    private boolean place(Object[] srcKeys, Object[] srcValues, long[] fingerprints, int[] hashed, int n) {
+        int bucketCount = Math.max(1, (n + BUCKET_LOAD - 1) / BUCKET_LOAD);
+        long[] hashes = new long[n];
+        int[] bucketStart = new int[bucketCount + 1];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = mix(fingerprints[hashed[i]] ^ seed);
+            bucketStart[bucketOf(hashes[i], bucketCount) + 1]++;
+        }
+        int maxBucketSize = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(bucketStart, bucketCount);
+        for (int i = 0; i < n; i++) {
+            members[fill[bucketOf(hashes[i], bucketCount)]++] = i;
+        }
+        // Counting sort of buckets by descending size
+        int[] sizeStart = new int[maxBucketSize + 2];
+        for (int b = 0; b < bucketCount; b++) {
+            sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+        }
+        for (int s = 0; s <= maxBucketSize; s++) {
+            sizeStart[s + 1] += sizeStart[s];
+        }
+        int[] order = new int[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            order[sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+        }
+        int[] newPilots = new int[bucketCount];
+        boolean[] taken = new boolean[n];
+        int[] slots = new int[maxBucketSize];
+        int nextFree = 0;
+        for (int b : order) {
+            int from = bucketStart[b];
+            int bucketSize = bucketStart[b + 1] - from;
+            if (bucketSize == 0) {
+                break;
+            }
+            if (bucketSize == 1) {
+                while (taken[nextFree]) {
+                    nextFree++;
+                }
+                taken[nextFree] = true;
+                newPilots[b] = ~nextFree;
+                continue;
+            }
+            int pilot = findPilot(hashes, members, from, bucketSize, taken, slots);
+            if (pilot < 0) {
+                return false;
+            }
+            newPilots[b] = pilot;
+            for (int i = 0; i < bucketSize; i++) {
+                taken[slots[i]] = true;
+            }
+        }
+        pilots = newPilots;
+        for (int i = 0; i < n; i++) {
+            int slot = slotOf(fingerprints[hashed[i]]);
+            table[slot << 1] = srcKeys[hashed[i]];
+            table[(slot << 1) + 1] = srcValues[hashed[i]];
+        }
+        return true;
+    }
+
+    private static int findPilot(long[] hashes, int[] members, int from, int bucketSize,
+                                 boolean[] taken, int[] slots) {
+        next:
+        for (int pilot = 0; pilot < MAX_PILOT; pilot++) {
+            for (int i = 0; i < bucketSize; i++) {
+                int slot = position(hashes[members[from + i]], pilot, taken.length);
+                if (taken[slot]) {
+                    continue next;
+                }
+                for (int j = 0; j < i; j++) {
+                    if (slots[j] == slot) {
+                        continue next;
+                    }
+                }
+                slots[i] = slot;
+            }
+            return pilot;
+        }
+        return -1;
+    }
+
+    // Rebuilds after deserialization when key hash codes differ from the writing JVM, e.g. enum keys
+    private Object readResolve() {
+        for (int i = 0; i < slots; i++) {
+            if (slotOf(fingerprint(Objects.hashCode(table[i << 1]))) != i) {
+                Object[] allKeys = new Object[size];
+                Object[] allValues = new Object[size];
+                for (int j = 0; j < size; j++) {
+                    Object[] from = j < slots ? table : overflow;
+                    int pos = j < slots ? j << 1 : j - slots << 1;
+                    allKeys[j] = from[pos];
+                    allValues[j] = from[pos + 1];
+                }
+                return new MyFrozenHashMap<K, V>(allKeys, allValues, size);
+            }
+        }
+        return this;
+    }
+
+    private static int bucketOf(long hash, int bucketCount) {
+        return (int) ((hash >>> 32) * bucketCount >>> 32);
+    }
+
+    private static int position(long hash, int pilot, int n) {
+        return (int) ((mix(hash + pilot * 0x9E3779B97F4A7C15L) >>> 32) * n >>> 32);
+    }
+
+    // Built on hashCode so String keys reuse their cached hash; an odd multiplier keeps distinct hash codes distinct
+    private static long fingerprint(int hash) {
+        return hash * 0x9E3779B97F4A7C15L;
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long x) {
+        x = (x ^ x >>> 30) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ x >>> 27) * 0x94D049BB133111EBL;
+        return x ^ x >>> 31;
+    }
+}
@@ -1,9 +1,12 @@
 package maps;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 public class MyHashMap<K, V> implements MyMap<K, V> {
 
@@ -98,6 +101,8 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
     private float loadFactor;
     private int size;
     private int modCount;
+    private ValueIndex<K, V> valueIndex;
+    private MyMapChangeStream<K, V> changeStream;
 
     public MyHashMap() {
         this.loadFactor = DEFAULT_LOAD_FACTOR;
@@ -125,11 +130,33 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         this.loadFactor = loadFactor;
     }
 
+    // Created on first use; subscribers are served on the common pool
+    public MyMapChangeStream<K, V> changes() {
+        return changes(changeStream == null ? MyMapChangeStream.DEFAULT_CAPACITY : changeStream.getCapacity());
+    }
+
+    // Capacity is the number of changes a subscriber may fall behind before it is told to resync
+    public MyMapChangeStream<K, V> changes(int capacity) {
+        if (changeStream == null) {
+            changeStream = new MyMapChangeStream<>(ForkJoinPool.commonPool(), capacity);
+        } else if (changeStream.getCapacity() < capacity) {
+            throw new IllegalStateException("Change stream already created with capacity "
+                    + changeStream.getCapacity());
+        }
+        return changeStream;
+    }
+
     @Override
     public void clear() {
         this.table = new SimpleEntry[table.length];
         size = 0;
         modCount++;
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+        if (changeStream != null) {
+            changeStream.clear();
+        }
     }
 
     @Override
@@ -148,7 +175,10 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
 
     @Override
     public boolean containsValue(Object value) {
-        Iterator<Entry<K, V>> iter = entryIterator();
+        if (valueIndex != null && value != null) {
+            return valueIndex.contains((V) value);
+        }
+        Iterator<Entry<K, V>> iter = new EntryIterator();
         while (iter.hasNext()) {
             if ((iter.next()).getValue().equals(value)) {
                 return true;
@@ -159,7 +189,13 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
 
     @Override
     public Iterator<Entry<K, V>> entryIterator() {
-        return new EntryIterator();
+        Iterator<Entry<K, V>> iter = valueIndex == null ? new EntryIterator() : valueIndex.wrap(new EntryIterator());
+        return changeStream != null && changeStream.isObserved() ? changeStream.wrap(iter) : iter;
+    }
+
+    // Immutable snapshot for read-only maps; this map stays usable and later changes are not reflected
+    public MyFrozenHashMap<K, V> freeze() {
+        return new MyFrozenHashMap<>(this);
     }
 
     @Override
@@ -181,6 +217,25 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         return size == 0;
     }
 
+    public boolean isValueIndexed() {
+        return valueIndex != null;
+    }
+
+    public Iterator<K> keysForValue(V value) {
+        if (valueIndex != null) {
+            return valueIndex.keysFor(value);
+        }
+        ValueIndex<K, V> matching = new ValueIndex<>();
+        Iterator<Entry<K, V>> iter = new EntryIterator();
+        while (iter.hasNext()) {
+            Entry<K, V> curEntry = iter.next();
+            if (Objects.equals(curEntry.getValue(), value)) {
+                matching.add(value, curEntry.getKey());
+            }
+        }
+        return matching.keysFor(value);
+    }
+
     @Override
     public V put(K key, V value) {
         int hashCode = Objects.hashCode(key);
@@ -215,6 +270,12 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         if (toReturn != null) {
             size--;
             modCount++;
+            if (valueIndex != null) {
+                valueIndex.remove(toReturn, key);
+            }
+            if (changeStream != null) {
+                changeStream.remove(key, toReturn);
+            }
         }
         return toReturn;
     }
@@ -224,6 +285,20 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         return size;
     }
 
+    public void setValueIndexed(boolean valueIndexed) {
+        if (!valueIndexed) {
+            valueIndex = null;
+        } else if (valueIndex == null) {
+            ValueIndex<K, V> index = new ValueIndex<>();
+            Iterator<Entry<K, V>> iter = new EntryIterator();
+            while (iter.hasNext()) {
+                Entry<K, V> curEntry = iter.next();
+                index.add(curEntry.getValue(), curEntry.getKey());
+            }
+            valueIndex = index;
+        }
+    }
+
 /*    public void showMap() {
         StringBuilder sb = new StringBuilder("{}");
         StringBuilder sub;
@@ -242,13 +317,11 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
 
     @Override
     public String toString() {
-        StringBuilder toReturn = new StringBuilder("{}");
-        Iterator<Entry<K, V>> iter = entryIterator();
-        while (iter.hasNext()) {
-            toReturn.insert(toReturn.length() - 1, ", " + iter.next());
-        }
-        if (toReturn.length() > 2) {
-            toReturn.delete(1, 3);
+        StringBuilder toReturn = new StringBuilder();
+        try {
+            MyMapExporter.export(this, toReturn, MyMapExporter.Format.PLAIN);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return toReturn.toString();
     }
@@ -261,6 +334,13 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
             if (curEntry.key.equals(key)) {
                 V toReturn = curEntry.value;
                 curEntry.value = value;
+                if (valueIndex != null) {
+                    valueIndex.remove(toReturn, key);
+                    valueIndex.add(value, key);
+                }
+                if (changeStream != null) {
+                    changeStream.put(key, toReturn, value);
+                }
                 return toReturn;
             }
             if (curEntry.next == null) {
@@ -273,6 +353,12 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         } else {
             curEntry.next = toAdd;
         }
+        if (valueIndex != null) {
+            valueIndex.add(value, key);
+        }
+        if (changeStream != null) {
+            changeStream.put(key, null, value);
+        }
         if (++size > table.length * loadFactor && table.length < MAXIMUM_CAPACITY) {
             resize();
         }
@@ -285,7 +371,7 @@ public class MyHashMap<K, V> implements MyMap<K, V> {
         int newCap = loadFactor == DEFAULT_LOAD_FACTOR
                 ? this.table.length << 1 : tableSizeFor((int) Math.ceil(size / loadFactor));
         MyHashMap<K, V> temp = new MyHashMap<>(newCap);
-        Iterator<Entry<K, V>> iter = entryIterator();
+        Iterator<Entry<K, V>> iter = new EntryIterator();
         while (iter.hasNext()) {
             SimpleEntry<K, V> curEntry = (SimpleEntry) iter.next();
             temp.put(curEntry.hashCode, curEntry.key, curEntry.value);
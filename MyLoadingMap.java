@@ -0,0 +1,282 @@
+package maps;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+public class MyLoadingMap<K, V> {
+
+    private static class Holder<V> {
+
+        private final V value;
+        private final long writeTime;
+        private boolean refreshing;
+
+        private Holder(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "MyLoadingMap-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MyHashMap<K, Holder<V>> map;
+    private final MyHashMap<K, CompletableFuture<V>> inFlight = new MyHashMap<>();
+    private final Executor refreshExecutor;
+    private long refreshAfterWriteNanos = -1;
+
+    public MyLoadingMap() {
+        this(new MyHashMap<>(), DEFAULT_EXECUTOR);
+    }
+
+    public MyLoadingMap(Executor refreshExecutor) {
+        this(new MyHashMap<>(), refreshExecutor);
+    }
+
+    private MyLoadingMap(MyHashMap<K, Holder<V>> map, Executor refreshExecutor) {
+        if (refreshExecutor == null) {
+            throw new IllegalArgumentException("Refresh executor is null");
+        }
+        this.map = map;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public synchronized MyLoadingMap<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Illegal refresh duration: " + duration);
+        }
+        this.refreshAfterWriteNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public synchronized V get(K key) {
+        Holder<V> holder = map.get(key);
+        return holder == null ? null : holder.value;
+    }
+
+    public V getOrLoad(K key, Function<? super K, ? extends V> loader) {
+        CompletableFuture<V> future;
+        boolean owner = false;
+        synchronized (this) {
+            Holder<V> holder = map.get(key);
+            if (holder != null) {
+                if (isStale(holder)) {
+                    scheduleRefresh(key, holder, loader);
+                }
+                return holder.value;
+            }
+            future = inFlight.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                inFlight.put(key, future);
+                owner = true;
+            }
+        }
+        if (owner) {
+            return load(key, future, loader);
+        }
+        return await(future);
+    }
+
+    // The bulk loader gets the distinct keys neither cached nor already being loaded, in request order
+    public MyMap<K, V> loadAll(Iterable<? extends K> keys,
+                               Function<? super List<K>, ? extends MyMap<K, V>> bulkLoader) {
+        MyHashMap<K, V> toReturn = new MyHashMap<>();
+        MyHashMap<K, CompletableFuture<V>> waiting = new MyHashMap<>();
+        List<K> toLoad = new ArrayList<>();
+        MyHashMap<K, CompletableFuture<V>> owned = new MyHashMap<>();
+        synchronized (this) {
+            for (K key : keys) {
+                Holder<V> holder = map.get(key);
+                if (holder != null) {
+                    toReturn.put(key, holder.value);
+                    continue;
+                }
+                CompletableFuture<V> future = inFlight.get(key);
+                if (future == null) {
+                    future = new CompletableFuture<>();
+                    inFlight.put(key, future);
+                    owned.put(key, future);
+                    toLoad.add(key);
+                } else if (!owned.containsKey(key)) {
+                    waiting.put(key, future);
+                }
+            }
+        }
+        if (!toLoad.isEmpty()) {
+            MyMap<K, V> loaded;
+            try {
+                loaded = bulkLoader.apply(Collections.unmodifiableList(toLoad));
+            } catch (RuntimeException | Error e) {
+                failAll(owned, e);
+                throw e;
+            }
+            long now = System.nanoTime();
+            Iterator<MyMap.Entry<K, CompletableFuture<V>>> iter = owned.entryIterator();
+            synchronized (this) {
+                while (iter.hasNext()) {
+                    MyMap.Entry<K, CompletableFuture<V>> curEntry = iter.next();
+                    V value = loaded == null ? null : loaded.get(curEntry.getKey());
+                    value = store(curEntry.getKey(), curEntry.getValue(), value, now);
+                    if (value != null) {
+                        toReturn.put(curEntry.getKey(), value);
+                    }
+                }
+            }
+            iter = owned.entryIterator();
+            while (iter.hasNext()) {
+                MyMap.Entry<K, CompletableFuture<V>> curEntry = iter.next();
+                curEntry.getValue().complete(toReturn.get(curEntry.getKey()));
+            }
+        }
+        Iterator<MyMap.Entry<K, CompletableFuture<V>>> iter = waiting.entryIterator();
+        while (iter.hasNext()) {
+            MyMap.Entry<K, CompletableFuture<V>> curEntry = iter.next();
+            V value = await(curEntry.getValue());
+            if (value != null) {
+                toReturn.put(curEntry.getKey(), value);
+            }
+        }
+        return toReturn;
+    }
+
+    // A load still in flight for the key is superseded and its result dropped
+    public synchronized void put(K key, V value) {
+        inFlight.remove(key);
+        if (value == null) {
+            map.remove(key);
+        } else {
+            map.put(key, new Holder<>(value, System.nanoTime()));
+        }
+    }
+
+    public synchronized V invalidate(K key) {
+        inFlight.remove(key);
+        Holder<V> holder = map.remove(key);
+        return holder == null ? null : holder.value;
+    }
+
+    public synchronized void invalidateAll() {
+        inFlight.clear();
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    private V load(K key, CompletableFuture<V> future, Function<? super K, ? extends V> loader) {
+        V value;
+        try {
+            value = loader.apply(key);
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                if (inFlight.get(key) == future) {
+                    inFlight.remove(key);
+                }
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            value = store(key, future, value, System.nanoTime());
+        }
+        future.complete(value);
+        return value;
+    }
+
+    // Keeps a loaded value only while its load is still the registered one; a put or invalidate
+    // in the meantime wins, and callers get whatever the map holds now
+    private V store(K key, CompletableFuture<V> future, V value, long now) {
+        if (inFlight.get(key) != future) {
+            Holder<V> holder = map.get(key);
+            return holder == null ? null : holder.value;
+        }
+        inFlight.remove(key);
+        if (value != null) {
+            map.put(key, new Holder<>(value, now));
+        }
+        return value;
+    }
+
+    private boolean isStale(Holder<V> holder) {
+        return refreshAfterWriteNanos >= 0 && !holder.refreshing
+                && System.nanoTime() - holder.writeTime >= refreshAfterWriteNanos;
+    }
+
+    // The stale value keeps being served until the reload replaces it
+    private void scheduleRefresh(K key, Holder<V> holder, Function<? super K, ? extends V> loader) {
+        holder.refreshing = true;
+        try {
+            refreshExecutor.execute(() -> refresh(key, holder, loader));
+        } catch (RejectedExecutionException e) {
+            holder.refreshing = false;
+        }
+    }
+
+    // A failed refresh leaves the holder eligible for the next attempt
+    private void refresh(K key, Holder<V> holder, Function<? super K, ? extends V> loader) {
+        boolean replaced = false;
+        try {
+            V value = loader.apply(key);
+            synchronized (this) {
+                if (map.get(key) == holder) {
+                    if (value == null) {
+                        map.remove(key);
+                    } else {
+                        map.put(key, new Holder<>(value, System.nanoTime()));
+                    }
+                    replaced = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep serving the stale value
+        } finally {
+            if (!replaced) {
+                synchronized (this) {
+                    holder.refreshing = false;
+                }
+            }
+        }
+    }
+
+    private void failAll(MyHashMap<K, CompletableFuture<V>> owned, Throwable cause) {
+        Iterator<MyMap.Entry<K, CompletableFuture<V>>> iter = owned.entryIterator();
+        synchronized (this) {
+            while (iter.hasNext()) {
+                inFlight.remove(iter.next().getKey());
+            }
+        }
+        iter = owned.entryIterator();
+        while (iter.hasNext()) {
+            iter.next().getValue().completeExceptionally(cause);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,1080 @@
+package maps;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class MyLsmTreeMap<K, V> implements MySortedMap<K, V>, Closeable {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int DEFAULT_MEMTABLE_THRESHOLD = 1 << 16;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MEMTABLE_BATCH = 64;
+    private static final int MIN_COMPACTION_THRESHOLD = 4;
+    private static final int MAX_COMPACTION_THRESHOLD = 32;
+    private static final byte END_OF_BLOCK = 0;
+    private static final byte VALUE_RECORD = 1;
+    private static final byte TOMBSTONE_RECORD = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".sst";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String MANIFEST_FILE = "MANIFEST";
+
+    private static class BloomFilter implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final int BITS_PER_KEY = 10;
+        private static final int HASHES = 7;
+
+        private final long[] bits;
+        private final int numBits;
+        // False for filters written before keys were hashed by stableHash; those went by hashCode()
+        private final boolean stableHashes;
+
+        private BloomFilter(long expectedKeys) {
+            long wanted = Math.max(64, expectedKeys * BITS_PER_KEY);
+            this.numBits = (int) Math.min(wanted, Integer.MAX_VALUE - 63);
+            this.bits = new long[(numBits + 63) >>> 6];
+            this.stableHashes = true;
+        }
+
+        private void add(Object key) {
+            int h1 = mix(stableHash(key));
+            int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, numBits);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        private boolean mightContain(Object key) {
+            int h1 = mix(stableHash(key));
+            int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, numBits);
+                if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // An older filter only agrees with stableHash when every key has a hash code fixed by its class
+        // contract; first keys stand in for the segment, whose keys share a type in practice
+        private boolean isUsable(Object[] firstKeys) {
+            if (stableHashes) {
+                return true;
+            }
+            for (Object key : firstKeys) {
+                if (!hasSpecifiedHashCode(key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Filters outlive the JVM that wrote them, so keys whose hashCode() may differ between runs,
+        // such as enums and other identity hashes, are hashed through their serialized form
+        private static int stableHash(Object key) {
+            if (hasSpecifiedHashCode(key)) {
+                return key.hashCode();
+            }
+            if (key instanceof Enum) {
+                Enum<?> constant = (Enum<?>) key;
+                return constant.getDeclaringClass().getName().hashCode() * 31 + constant.name().hashCode();
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to hash key " + key, e);
+            }
+            return Arrays.hashCode(bos.toByteArray());
+        }
+
+        private static boolean hasSpecifiedHashCode(Object key) {
+            return key instanceof String || key instanceof Integer || key instanceof Long
+                    || key instanceof Short || key instanceof Byte || key instanceof Character
+                    || key instanceof Boolean || key instanceof Double || key instanceof Float;
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return h ^ h >>> 16;
+        }
+    }
+
+    private static class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final Object[] firstKeys;
+        private final long[] offsets;
+        private final long dataEnd;
+        // Null when the stored filter cannot be trusted, so every lookup reads the block
+        private final BloomFilter bloom;
+        private final long entryCount;
+        private int refCount = 1;
+        private boolean deleteOnRelease = true;
+
+        private Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+                readFully(channel, trailer, size - Long.BYTES);
+                this.dataEnd = trailer.getLong(0);
+                ByteBuffer footer = ByteBuffer.allocate((int) (size - Long.BYTES - dataEnd));
+                readFully(channel, footer, dataEnd);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(footer.array()));
+                this.firstKeys = (Object[]) ois.readObject();
+                this.offsets = (long[]) ois.readObject();
+                BloomFilter filter = (BloomFilter) ois.readObject();
+                // Filters hashed by an unstable hashCode() would turn lookups into misses; go without
+                this.bloom = filter.isUsable(firstKeys) ? filter : null;
+                this.entryCount = ois.readLong();
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                channel.close();
+                throw new IOException("Corrupted segment " + path, e);
+            }
+        }
+
+        private Object[][] readBlock(int block) throws IOException {
+            long end = block + 1 < offsets.length ? offsets[block + 1] : dataEnd;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - offsets[block]));
+            readFully(channel, buffer, offsets[block]);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer.array()));
+            List<Object> keys = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            try {
+                for (byte type = ois.readByte(); type != END_OF_BLOCK; type = ois.readByte()) {
+                    keys.add(ois.readObject());
+                    values.add(type == TOMBSTONE_RECORD ? TOMBSTONE : ois.readObject());
+                }
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Corrupted segment " + path, e);
+            }
+            return new Object[][]{keys.toArray(), values.toArray()};
+        }
+    }
+
+    private interface Cursor {
+        boolean hasCurrent();
+
+        Object key();
+
+        Object value();
+
+        void advance() throws IOException;
+    }
+
+    // Walks a memtable in place, MEMTABLE_BATCH entries per visit under the map's lock, seeking past
+    // the last key for the next batch. Writes made meanwhile may or may not be seen; a flush swaps in a
+    // new memtable and leaves this one as it was, so the walk carries on undisturbed.
+    private class MemtableCursor implements Cursor {
+
+        private final MyTreeMap<K, Object> table;
+        private final K to;
+        private final Object[] keys = new Object[MEMTABLE_BATCH];
+        private final Object[] values = new Object[MEMTABLE_BATCH];
+        private int count;
+        private int pos;
+        private boolean exhausted;
+
+        private MemtableCursor(MyTreeMap<K, Object> table, K from, K to) {
+            this.table = table;
+            this.to = to;
+            fill(from, false);
+        }
+
+        @Override
+        public boolean hasCurrent() {
+            return pos < count;
+        }
+
+        @Override
+        public Object key() {
+            return keys[pos];
+        }
+
+        @Override
+        public Object value() {
+            return values[pos];
+        }
+
+        @Override
+        public void advance() {
+            if (++pos == count && !exhausted) {
+                fill((K) keys[count - 1], true);
+            }
+        }
+
+        private void fill(K from, boolean afterFrom) {
+            synchronized (MyLsmTreeMap.this) {
+                Iterator<Entry<K, Object>> iter = table.rangeIterator(from, to);
+                if (afterFrom && iter.hasNext()) {
+                    Entry<K, Object> curEntry = iter.next();
+                    if (compare(curEntry.getKey(), from) != 0) {
+                        keys[0] = curEntry.getKey();
+                        values[0] = curEntry.getValue();
+                        count = 1;
+                    } else {
+                        count = 0;
+                    }
+                } else {
+                    count = 0;
+                }
+                while (count < MEMTABLE_BATCH && iter.hasNext()) {
+                    Entry<K, Object> curEntry = iter.next();
+                    keys[count] = curEntry.getKey();
+                    values[count++] = curEntry.getValue();
+                }
+                exhausted = !iter.hasNext();
+            }
+            Arrays.fill(keys, count, MEMTABLE_BATCH, null);
+            Arrays.fill(values, count, MEMTABLE_BATCH, null);
+            pos = 0;
+        }
+    }
+
+    private class SegmentCursor implements Cursor {
+
+        private final Segment segment;
+        private int block = -1;
+        private Object[][] entries;
+        private int pos;
+
+        private SegmentCursor(Segment segment, K from) throws IOException {
+            this.segment = segment;
+            int start = from == null ? 0 : Math.max(0, floorBlock(segment, from));
+            loadBlock(start);
+            while (from != null && hasCurrent() && compare(key(), from) < 0) {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasCurrent() {
+            return entries != null;
+        }
+
+        @Override
+        public Object key() {
+            return entries[0][pos];
+        }
+
+        @Override
+        public Object value() {
+            return entries[1][pos];
+        }
+
+        @Override
+        public void advance() throws IOException {
+            if (++pos >= entries[0].length) {
+                loadBlock(block + 1);
+            }
+        }
+
+        private void loadBlock(int next) throws IOException {
+            entries = null;
+            for (block = next; block < segment.offsets.length; block++) {
+                Object[][] loaded = segment.readBlock(block);
+                if (loaded[0].length > 0) {
+                    entries = loaded;
+                    pos = 0;
+                    return;
+                }
+            }
+        }
+    }
+
+    private class MergingCursor implements Cursor {
+
+        // Sources are ordered newest first, so a lower index wins on equal keys
+        private final Cursor[] sources;
+        private final PriorityQueue<Integer> queue;
+        private Object key;
+        private Object value;
+        private boolean hasCurrent;
+
+        private MergingCursor(Cursor[] sources) throws IOException {
+            this.sources = sources;
+            this.queue = new PriorityQueue<>(Math.max(1, sources.length), (i1, i2) -> {
+                int cmp = compare(sources[i1].key(), sources[i2].key());
+                return cmp != 0 ? cmp : Integer.compare(i1, i2);
+            });
+            for (int i = 0; i < sources.length; i++) {
+                if (sources[i].hasCurrent()) {
+                    queue.add(i);
+                }
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasCurrent() {
+            return hasCurrent;
+        }
+
+        @Override
+        public Object key() {
+            return key;
+        }
+
+        @Override
+        public Object value() {
+            return value;
+        }
+
+        @Override
+        public void advance() throws IOException {
+            hasCurrent = !queue.isEmpty();
+            if (!hasCurrent) {
+                return;
+            }
+            int winner = queue.poll();
+            key = sources[winner].key();
+            value = sources[winner].value();
+            step(winner);
+            while (!queue.isEmpty() && compare(sources[queue.peek()].key(), key) == 0) {
+                step(queue.poll());
+            }
+        }
+
+        private void step(int source) throws IOException {
+            sources[source].advance();
+            if (sources[source].hasCurrent()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    private static class ImmutableEntry<K, V> implements Entry<K, V> {
+
+        private final K key;
+        private final V value;
+
+        private ImmutableEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry
+                    && Objects.equals(key, ((Entry) o).getKey())
+                    && Objects.equals(value, ((Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Entries of MyLsmTreeMap are read-only");
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private class RangeIterator implements Iterator<Entry<K, V>> {
+
+        private final K to;
+        private final List<Segment> acquired;
+        private MergingCursor cursor;
+
+        private RangeIterator(K from, K to) {
+            this.to = to;
+            synchronized (MyLsmTreeMap.this) {
+                checkOpen();
+                acquired = new ArrayList<>(segments);
+                Cursor[] sources = new Cursor[acquired.size() + 1];
+                try {
+                    sources[0] = new MemtableCursor(memtable, from, to);
+                    for (int i = 0; i < acquired.size(); i++) {
+                        acquired.get(i).refCount++;
+                    }
+                    for (int i = 0; i < acquired.size(); i++) {
+                        sources[i + 1] = new SegmentCursor(acquired.get(i), from);
+                    }
+                    cursor = new MergingCursor(sources);
+                } catch (IOException e) {
+                    releaseAll(acquired);
+                    throw new UncheckedIOException(e);
+                }
+            }
+            skipTombstones();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> toReturn = new ImmutableEntry<>((K) cursor.key(), (V) cursor.value());
+            try {
+                cursor.advance();
+            } catch (IOException e) {
+                finish();
+                throw new UncheckedIOException(e);
+            }
+            skipTombstones();
+            return toReturn;
+        }
+
+        private void skipTombstones() {
+            try {
+                while (cursor.hasCurrent() && cursor.value() == TOMBSTONE
+                        && (to == null || compare(cursor.key(), to) < 0)) {
+                    cursor.advance();
+                }
+            } catch (IOException e) {
+                finish();
+                throw new UncheckedIOException(e);
+            }
+            if (!cursor.hasCurrent() || to != null && compare(cursor.key(), to) >= 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (cursor == null) {
+                return;
+            }
+            cursor = null;
+            synchronized (MyLsmTreeMap.this) {
+                releaseAll(acquired);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final Comparator<K> comparator;
+    private final int memtableThreshold;
+    private final ExecutorService compactor;
+    private MyTreeMap<K, Object> memtable;
+    // Newest segment first
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSegmentId;
+    private long generation;
+    private boolean compacting;
+    private boolean closed;
+
+    public MyLsmTreeMap(Path directory) throws IOException {
+        this(directory, null, DEFAULT_MEMTABLE_THRESHOLD);
+    }
+
+    public MyLsmTreeMap(Path directory, Comparator<K> comparator, int memtableThreshold)
+            throws IOException {
+        if (memtableThreshold <= 0) {
+            throw new IllegalArgumentException("Illegal memtable threshold: " + memtableThreshold);
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.comparator = comparator;
+        this.memtableThreshold = memtableThreshold;
+        this.memtable = new MyTreeMap<>(comparator);
+        openSegments();
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MyLsmTreeMap-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleCompaction();
+    }
+
+    @Override
+    public synchronized void clear() {
+        checkOpen();
+        try {
+            writeManifest(Collections.emptyList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        memtable = new MyTreeMap<>(comparator);
+        releaseAll(segments);
+        segments.clear();
+        generation++;
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    // Full scan over memtable and every segment
+    @Override
+    public boolean containsValue(V value) {
+        RangeIterator iter = new RangeIterator(null, null);
+        while (iter.hasNext()) {
+            if (iter.next().getValue().equals(value)) {
+                iter.finish();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new RangeIterator(null, null);
+    }
+
+    // Segments are pinned when the iterator is created; the memtable is read as the iteration goes
+    @Override
+    public Iterator<Entry<K, V>> rangeIterator(K from, K to) {
+        if (from != null && to != null && compare(from, to) > 0) {
+            throw new IllegalArgumentException("from > to");
+        }
+        return new RangeIterator(from, to);
+    }
+
+    // Writes a tombstone without looking the key up first
+    public synchronized void delete(K key) {
+        checkOpen();
+        if (key == null) {
+            throw new IllegalArgumentException("Null keys and values are not supported");
+        }
+        memtable.put(key, TOMBSTONE);
+        flushIfFull();
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        checkOpen();
+        if (key == null) {
+            return null;
+        }
+        Object found = memtable.get(key);
+        try {
+            for (int i = 0; found == null && i < segments.size(); i++) {
+                found = lookup(segments.get(i), key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return found == TOMBSTONE ? null : (V) found;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        RangeIterator iter = new RangeIterator(null, null);
+        if (iter.hasNext()) {
+            iter.finish();
+            return false;
+        }
+        return true;
+    }
+
+    // Returning the previous value costs a full get(); set() skips it
+    @Override
+    public synchronized V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Null keys and values are not supported");
+        }
+        V toReturn = get(key);
+        memtable.put(key, value);
+        flushIfFull();
+        return toReturn;
+    }
+
+    // Like remove(), returning the previous value costs a full get(); delete() skips it
+    @Override
+    public synchronized V remove(K key) {
+        V toReturn = get(key);
+        if (toReturn != null) {
+            memtable.put(key, TOMBSTONE);
+            flushIfFull();
+        }
+        return toReturn;
+    }
+
+    // Memtable-only write: no lookup of the previous value
+    public synchronized void set(K key, V value) {
+        checkOpen();
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Null keys and values are not supported");
+        }
+        memtable.put(key, value);
+        flushIfFull();
+    }
+
+    // Live entries have to be merged across segments to be counted
+    @Override
+    public int size() {
+        int size = 0;
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            iter.next();
+            size++;
+        }
+        return size;
+    }
+
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        if (memtable.isEmpty()) {
+            return;
+        }
+        long id = nextSegmentId++;
+        Path path = segmentPath(id);
+        writeSegment(path, new MemtableCursor(memtable, null, null), memtable.size(), false);
+        Segment segment = new Segment(id, path);
+        List<Segment> live = new ArrayList<>(segments);
+        live.add(0, segment);
+        try {
+            writeManifest(live);
+        } catch (IOException e) {
+            segment.channel.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        segments.add(0, segment);
+        memtable = new MyTreeMap<>(comparator);
+        scheduleCompaction();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.deleteOnRelease = false;
+            }
+            releaseAll(segments);
+            segments.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder toReturn = new StringBuilder("{");
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            toReturn.append(iter.next());
+            if (iter.hasNext()) {
+                toReturn.append(", ");
+            }
+        }
+        return toReturn.append('}').toString();
+    }
+
+    private int compare(Object o1, Object o2) {
+        return this.comparator == null
+                ? ((Comparable) o1).compareTo(o2) : this.comparator.compare((K) o1, (K) o2);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    private void flushIfFull() {
+        if (memtable.size() >= memtableThreshold) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private Object lookup(Segment segment, K key) throws IOException {
+        if (segment.bloom != null && !segment.bloom.mightContain(key)) {
+            return null;
+        }
+        int block = floorBlock(segment, key);
+        if (block < 0) {
+            return null;
+        }
+        Object[][] entries = segment.readBlock(block);
+        int low = 0;
+        int high = entries[0].length - 1;
+        while (low <= high) {
+            int mid = low + high >>> 1;
+            int cmp = compare(entries[0][mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entries[1][mid];
+            }
+        }
+        return null;
+    }
+
+    private int floorBlock(Segment segment, Object key) {
+        int low = 0;
+        int high = segment.firstKeys.length - 1;
+        int toReturn = -1;
+        while (low <= high) {
+            int mid = low + high >>> 1;
+            if (compare(segment.firstKeys[mid], key) <= 0) {
+                toReturn = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return toReturn;
+    }
+
+    private void writeSegment(Path path, Cursor cursor, long expectedKeys, boolean dropTombstones)
+            throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+        List<Object> firstKeys = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        BloomFilter bloom = new BloomFilter(expectedKeys);
+        long entryCount = 0;
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            ObjectOutputStream oos = null;
+            for (; cursor.hasCurrent(); cursor.advance()) {
+                if (dropTombstones && cursor.value() == TOMBSTONE) {
+                    continue;
+                }
+                if (oos == null) {
+                    block.reset();
+                    oos = new ObjectOutputStream(block);
+                    firstKeys.add(cursor.key());
+                    offsets.add(position);
+                }
+                if (cursor.value() == TOMBSTONE) {
+                    oos.writeByte(TOMBSTONE_RECORD);
+                    oos.writeObject(cursor.key());
+                } else {
+                    oos.writeByte(VALUE_RECORD);
+                    oos.writeObject(cursor.key());
+                    oos.writeObject(cursor.value());
+                }
+                bloom.add(cursor.key());
+                entryCount++;
+                oos.flush();
+                if (block.size() >= BLOCK_SIZE) {
+                    position += writeBlock(out, block, oos, position);
+                    oos = null;
+                }
+            }
+            if (oos != null) {
+                position += writeBlock(out, block, oos, position);
+            }
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            ObjectOutputStream footerOut = new ObjectOutputStream(footer);
+            footerOut.writeObject(firstKeys.toArray());
+            long[] offsetArray = new long[offsets.size()];
+            for (int i = 0; i < offsetArray.length; i++) {
+                offsetArray[i] = offsets.get(i);
+            }
+            footerOut.writeObject(offsetArray);
+            footerOut.writeObject(bloom);
+            footerOut.writeLong(entryCount);
+            footerOut.flush();
+            ByteBuffer tail = ByteBuffer.allocate(footer.size() + Long.BYTES);
+            tail.put(footer.toByteArray()).putLong(position).flip();
+            writeFully(out, tail, position);
+            out.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+
+    // The manifest names the live segments, newest first; files it does not list are garbage
+    private void writeManifest(List<Segment> live) throws IOException {
+        long[] ids = new long[live.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = live.get(i).id;
+        }
+        Path path = directory.resolve(MANIFEST_FILE);
+        Path tmpPath = directory.resolve(MANIFEST_FILE + TMP_SUFFIX);
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(ids);
+            oos.flush();
+            writeFully(out, ByteBuffer.wrap(bos.toByteArray()), 0);
+            out.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+
+    private long[] readManifest() throws IOException {
+        Path path = directory.resolve(MANIFEST_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            return (long[]) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Corrupted manifest " + path, e);
+        }
+    }
+
+    // Makes renames in the directory durable; a no-op where directories cannot be opened
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Windows
+        }
+    }
+
+    private static int writeBlock(FileChannel out, ByteArrayOutputStream block, ObjectOutputStream oos,
+                                  long position) throws IOException {
+        oos.writeByte(END_OF_BLOCK);
+        oos.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(block.toByteArray());
+        writeFully(out, buffer, position);
+        return buffer.capacity();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    // Loads the segments listed in the manifest and deletes every other segment file: unfinished
+    // flushes, compaction inputs whose replacement was recorded, and segments a crash or a pinning
+    // iterator kept on disk. Directories written before the manifest existed load every segment.
+    private void openSegments() throws IOException {
+        long[] live = readManifest();
+        Set<Long> listed = new HashSet<>();
+        if (live != null) {
+            for (long id : live) {
+                listed.add(id);
+            }
+        }
+        List<Long> found = new ArrayList<>();
+        long maxId = -1;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.equals(MANIFEST_FILE + TMP_SUFFIX)) {
+                    Files.delete(path);
+                }
+                if (!name.startsWith(SEGMENT_PREFIX)) {
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    // Unfinished flush or compaction output
+                    Files.delete(path);
+                    continue;
+                }
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                // Ids are never reused, so an iterator of an earlier instance cannot delete a new file
+                maxId = Math.max(maxId, id);
+                if (live == null || listed.contains(id)) {
+                    found.add(id);
+                } else {
+                    Files.delete(path);
+                }
+            }
+        }
+        if (live == null) {
+            found.sort(Collections.reverseOrder());
+        } else {
+            for (long id : live) {
+                if (!found.contains(id)) {
+                    throw new IOException("Missing segment " + segmentPath(id));
+                }
+            }
+            found.clear();
+            for (long id : live) {
+                found.add(id);
+            }
+        }
+        try {
+            for (long id : found) {
+                segments.add(new Segment(id, segmentPath(id)));
+            }
+            if (live == null) {
+                writeManifest(segments);
+            }
+        } catch (IOException e) {
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+            throw e;
+        }
+        nextSegmentId = maxId + 1;
+    }
+
+    private void releaseAll(List<Segment> toRelease) {
+        for (Segment segment : toRelease) {
+            if (--segment.refCount == 0) {
+                try {
+                    segment.channel.close();
+                    if (segment.deleteOnRelease) {
+                        Files.deleteIfExists(segment.path);
+                    }
+                } catch (IOException ignored) {
+                    // Not in the manifest, so the next open deletes it
+                }
+            }
+        }
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (!compacting && !closed && pickCompactionRun() != null) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    // Size-tiered: the first run of adjacent segments of similar size gets merged
+    private int[] pickCompactionRun() {
+        for (int start = 0; start + MIN_COMPACTION_THRESHOLD <= segments.size(); start++) {
+            long total = segments.get(start).entryCount;
+            int end = start + 1;
+            while (end < segments.size() && end - start < MAX_COMPACTION_THRESHOLD) {
+                long average = Math.max(1, total / (end - start));
+                long count = segments.get(end).entryCount;
+                if (count > average * 2 || count * 2 < average) {
+                    break;
+                }
+                total += count;
+                end++;
+            }
+            if (end - start >= MIN_COMPACTION_THRESHOLD) {
+                return new int[]{start, end};
+            }
+        }
+        return null;
+    }
+
+    private void compact() {
+        List<Segment> run;
+        long runGeneration;
+        boolean includesOldest;
+        long mergedId;
+        synchronized (this) {
+            int[] bounds = pickCompactionRun();
+            if (bounds == null || closed) {
+                compacting = false;
+                return;
+            }
+            run = new ArrayList<>(segments.subList(bounds[0], bounds[1]));
+            includesOldest = bounds[1] == segments.size();
+            runGeneration = generation;
+            mergedId = nextSegmentId++;
+            for (Segment segment : run) {
+                segment.refCount++;
+            }
+        }
+        // The merged segment takes the run's place in the manifest; the inputs go once it is recorded
+        Segment newest = run.get(0);
+        Path mergedPath = segmentPath(mergedId);
+        boolean swapped = false;
+        try {
+            Cursor[] sources = new Cursor[run.size()];
+            long expectedKeys = 0;
+            for (int i = 0; i < run.size(); i++) {
+                sources[i] = new SegmentCursor(run.get(i), null);
+                expectedKeys += run.get(i).entryCount;
+            }
+            writeSegment(mergedPath, new MergingCursor(sources), expectedKeys, includesOldest);
+            synchronized (this) {
+                int start = segments.indexOf(newest);
+                if (runGeneration == generation && !closed && start >= 0
+                        && segments.subList(start, start + run.size()).equals(run)) {
+                    Segment merged = new Segment(mergedId, mergedPath);
+                    List<Segment> live = new ArrayList<>(segments);
+                    live.subList(start, start + run.size()).clear();
+                    live.add(start, merged);
+                    try {
+                        writeManifest(live);
+                    } catch (IOException e) {
+                        merged.channel.close();
+                        throw e;
+                    }
+                    segments.subList(start, start + run.size()).clear();
+                    segments.add(start, merged);
+                    releaseAll(run);
+                    swapped = true;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The inputs stay in place and are retried on the next flush
+        } finally {
+            synchronized (this) {
+                releaseAll(run);
+                compacting = false;
+            }
+            if (!swapped) {
+                try {
+                    Files.deleteIfExists(mergedPath);
+                } catch (IOException ignored) {
+                    // Leftovers are ignored by openSegments
+                }
+            }
+        }
+        if (swapped) {
+            scheduleCompaction();
+        }
+    }
+}
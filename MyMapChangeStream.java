@@ -0,0 +1,339 @@
+package maps;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Change data capture for MyHashMap and MyTreeMap. Mutations are appended to chunks of CHUNK_SIZE
+// events; the last chunks, up to the stream's capacity, stay reachable from a ring, and every
+// subscriber keeps its own cursor into it. Each onNext carries the events available up to the end of
+// the cursor's chunk, and request(n) counts those batches. The map never waits for subscribers: one
+// that falls more than the capacity behind skips ahead to the newest change and receives a batch
+// holding a single RESYNC. It then has to re-read the map; the changes that follow apply on top of
+// that snapshot. While nobody is subscribed the map records nothing.
+public class MyMapChangeStream<K, V> implements Flow.Publisher<List<MyMapChangeStream.Change<K, V>>> {
+
+    static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    public enum Type {
+        PUT, REMOVE, CLEAR, RESYNC
+    }
+
+    public static final class Change<K, V> {
+
+        private final Type type;
+        private final K key;
+        private final V oldValue;
+        private final V newValue;
+
+        private Change(Type type, K key, V oldValue, V newValue) {
+            this.type = type;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        // Null for CLEAR and RESYNC
+        public K getKey() {
+            return key;
+        }
+
+        // Null when a PUT added the key
+        public V getOldValue() {
+            return oldValue;
+        }
+
+        // Null for REMOVE, CLEAR and RESYNC
+        public V getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            return type == Type.CLEAR || type == Type.RESYNC
+                    ? type.toString() : type + " " + key + ": " + oldValue + " -> " + newValue;
+        }
+    }
+
+    private static class Chunk<K, V> {
+
+        private final long index;
+        private final Change<K, V>[] events = new Change[CHUNK_SIZE];
+
+        private Chunk(long index) {
+            this.index = index;
+        }
+    }
+
+    private class ObservedEntry implements MyMap.Entry<K, V> {
+
+        private final MyMap.Entry<K, V> entry;
+
+        private ObservedEntry(MyMap.Entry<K, V> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(getKey(), ((MyMap.Entry) o).getKey())
+                    && Objects.equals(getValue(), ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return entry.getKey();
+        }
+
+        @Override
+        public V getValue() {
+            return entry.getValue();
+        }
+
+        @Override
+        public int hashCode() {
+            return entry.hashCode();
+        }
+
+        @Override
+        public V setValue(V value) {
+            V toReturn = entry.setValue(value);
+            put(entry.getKey(), toReturn, value);
+            return toReturn;
+        }
+
+        @Override
+        public String toString() {
+            return entry.toString();
+        }
+    }
+
+    private class ChangeSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super List<Change<K, V>>> subscriber;
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        // Set once the drain loop has caught up, so the writer knows to wake it
+        private volatile boolean idle;
+        private volatile boolean cancelled;
+        private volatile Throwable failure;
+        private boolean started;
+        private long cursor;
+
+        private ChangeSubscription(Flow.Subscriber<? super List<Change<K, V>>> subscriber, long cursor) {
+            this.subscriber = subscriber;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Illegal request: " + n);
+            } else {
+                requested.getAndAccumulate(n, (cur, add) -> cur + add < 0 ? Long.MAX_VALUE : cur + add);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            detach(this);
+        }
+
+        // Serializes onSubscribe/onNext/onError: only the thread that moves wip off zero runs the loop
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!started) {
+                    started = true;
+                    try {
+                        subscriber.onSubscribe(this);
+                    } catch (Throwable e) {
+                        fail(e);
+                    }
+                }
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void fail(Throwable e) {
+            cancel();
+            subscriber.onError(e);
+        }
+
+        private void drain() {
+            while (!cancelled) {
+                if (failure != null) {
+                    fail(failure);
+                    return;
+                }
+                long available = published;
+                if (cursor == available) {
+                    idle = true;
+                    if (published == cursor) {
+                        return;
+                    }
+                    idle = false;
+                    continue;
+                }
+                long demand = requested.get();
+                if (demand == 0) {
+                    return;
+                }
+                long chunkIndex = cursor >>> CHUNK_BITS;
+                Chunk<K, V> chunk = ring[(int) (chunkIndex & ring.length - 1)];
+                List<Change<K, V>> batch;
+                if (chunk == null || chunk.index != chunkIndex) {
+                    // Overwritten: the changes in between are gone, so the subscriber starts over
+                    cursor = available;
+                    batch = Collections.singletonList(new Change<>(Type.RESYNC, null, null, null));
+                } else {
+                    int from = (int) (cursor & CHUNK_MASK);
+                    int to = (int) Math.min(CHUNK_SIZE, available - (chunkIndex << CHUNK_BITS));
+                    cursor += to - from;
+                    batch = Collections.unmodifiableList(Arrays.asList(chunk.events).subList(from, to));
+                }
+                if (demand != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                try {
+                    subscriber.onNext(batch);
+                } catch (Throwable e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void signal() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final Chunk<K, V>[] ring;
+    private volatile ChangeSubscription[] subscriptions = new MyMapChangeStream.ChangeSubscription[0];
+    private Chunk<K, V> current;
+    // Count of changes written; written by the mutating thread only
+    private volatile long published;
+
+    // Capacity is rounded up to a power-of-two number of chunks, at least two
+    MyMapChangeStream(Executor executor, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        int chunks = Math.max(2, Integer.highestOneBit((capacity + CHUNK_MASK >>> CHUNK_BITS) - 1) << 1);
+        this.executor = executor;
+        this.ring = new Chunk[chunks];
+    }
+
+    @Override
+    public synchronized void subscribe(Flow.Subscriber<? super List<Change<K, V>>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        ChangeSubscription subscription = new ChangeSubscription(subscriber, published);
+        for (ChangeSubscription existing : subscriptions) {
+            if (existing.subscriber == subscriber) {
+                subscription.failure = new IllegalStateException("Already subscribed: " + subscriber);
+                subscription.signal();
+                return;
+            }
+        }
+        ChangeSubscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        subs[subs.length - 1] = subscription;
+        subscriptions = subs;
+        subscription.signal();
+    }
+
+    // Changes kept for subscribers that fall behind
+    public int getCapacity() {
+        return ring.length << CHUNK_BITS;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.length;
+    }
+
+    boolean isObserved() {
+        return subscriptions.length > 0;
+    }
+
+    void put(K key, V oldValue, V newValue) {
+        record(Type.PUT, key, oldValue, newValue);
+    }
+
+    void remove(K key, V oldValue) {
+        record(Type.REMOVE, key, oldValue, null);
+    }
+
+    void clear() {
+        record(Type.CLEAR, null, null, null);
+    }
+
+    // Entries whose setValue is reported as a PUT
+    Iterator<MyMap.Entry<K, V>> wrap(Iterator<MyMap.Entry<K, V>> iter) {
+        return new Iterator<MyMap.Entry<K, V>>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public MyMap.Entry<K, V> next() {
+                return new ObservedEntry(iter.next());
+            }
+        };
+    }
+
+    private synchronized void detach(ChangeSubscription subscription) {
+        ChangeSubscription[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == subscription) {
+                ChangeSubscription[] newSubs = Arrays.copyOf(subs, subs.length - 1);
+                System.arraycopy(subs, i + 1, newSubs, i, subs.length - i - 1);
+                subscriptions = newSubs;
+                return;
+            }
+        }
+    }
+
+    private void record(Type type, K key, V oldValue, V newValue) {
+        ChangeSubscription[] subs = subscriptions;
+        if (subs.length == 0) {
+            return;
+        }
+        long sequence = published;
+        int offset = (int) (sequence & CHUNK_MASK);
+        if (offset == 0) {
+            current = new Chunk<>(sequence >>> CHUNK_BITS);
+            ring[(int) (current.index & ring.length - 1)] = current;
+        }
+        current.events[offset] = new Change<>(type, key, oldValue, newValue);
+        published = sequence + 1;
+        for (ChangeSubscription subscription : subs) {
+            if (subscription.idle) {
+                subscription.idle = false;
+                subscription.signal();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package maps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+public final class MyMapExporter {
+
+    public enum Format {
+        PLAIN, JSON_LINES, CSV
+    }
+
+    private MyMapExporter() {
+    }
+
+    public static <K, V> void export(MyMap<K, V> map, Appendable out, Format format) throws IOException {
+        Iterator<MyMap.Entry<K, V>> iter = map.entryIterator();
+        switch (format) {
+            case PLAIN:
+                out.append('{');
+                while (iter.hasNext()) {
+                    MyMap.Entry<K, V> curEntry = iter.next();
+                    out.append(String.valueOf(curEntry.getKey())).append('=')
+                            .append(String.valueOf(curEntry.getValue()));
+                    if (iter.hasNext()) {
+                        out.append(", ");
+                    }
+                }
+                out.append('}');
+                break;
+            case JSON_LINES:
+                while (iter.hasNext()) {
+                    MyMap.Entry<K, V> curEntry = iter.next();
+                    out.append("{\"key\":");
+                    appendJson(out, curEntry.getKey());
+                    out.append(",\"value\":");
+                    appendJson(out, curEntry.getValue());
+                    out.append("}\n");
+                }
+                break;
+            case CSV:
+                out.append("key,value\n");
+                while (iter.hasNext()) {
+                    MyMap.Entry<K, V> curEntry = iter.next();
+                    appendCsv(out, curEntry.getKey());
+                    out.append(',');
+                    appendCsv(out, curEntry.getValue());
+                    out.append('\n');
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    // The channel is flushed but left open
+    public static <K, V> void export(MyMap<K, V> map, WritableByteChannel channel, Format format)
+            throws IOException {
+        Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+        export(map, writer, format);
+        writer.flush();
+    }
+
+    private static void appendJson(Appendable out, Object value) throws IOException {
+        if (value == null || value instanceof Boolean
+                || value instanceof Number && isFinite((Number) value)) {
+            out.append(String.valueOf(value));
+            return;
+        }
+        String str = value.toString();
+        out.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        out.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        out.append(ch);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean isFinite(Number number) {
+        return !(number instanceof Double && !Double.isFinite((Double) number)
+                || number instanceof Float && !Float.isFinite((Float) number));
+    }
+
+    private static void appendCsv(Appendable out, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        String str = value.toString();
+        boolean quote = false;
+        for (int i = 0; i < str.length() && !quote; i++) {
+            char ch = str.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            out.append(str);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch == '"') {
+                out.append('"');
+            }
+            out.append(ch);
+        }
+        out.append('"');
+    }
+}
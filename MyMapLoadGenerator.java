@@ -0,0 +1,573 @@
+package maps;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+public class MyMapLoadGenerator {
+
+    public enum Operation {
+        READ, INSERT, UPDATE, DELETE, SCAN
+    }
+
+    public enum Distribution {
+        UNIFORM, ZIPFIAN, LATEST
+    }
+
+    public static class Workload {
+
+        private long recordCount = 100_000;
+        private long operationCount = 1_000_000;
+        private int threads = 1;
+        private int scanLength = 100;
+        private double[] proportions = {0.95, 0, 0.05, 0, 0};
+        private Distribution distribution = Distribution.ZIPFIAN;
+        private Path trace;
+        private long reportIntervalMillis = 1000;
+        private long seed = System.nanoTime();
+
+        public Workload recordCount(long recordCount) {
+            if (recordCount < 0) {
+                throw new IllegalArgumentException("Illegal record count: " + recordCount);
+            }
+            this.recordCount = recordCount;
+            return this;
+        }
+
+        public Workload operationCount(long operationCount) {
+            if (operationCount < 0) {
+                throw new IllegalArgumentException("Illegal operation count: " + operationCount);
+            }
+            this.operationCount = operationCount;
+            return this;
+        }
+
+        public Workload threads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("Illegal thread count: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public Workload scanLength(int scanLength) {
+            if (scanLength <= 0) {
+                throw new IllegalArgumentException("Illegal scan length: " + scanLength);
+            }
+            this.scanLength = scanLength;
+            return this;
+        }
+
+        public Workload proportion(Operation operation, double proportion) {
+            if (proportion < 0 || Double.isNaN(proportion)) {
+                throw new IllegalArgumentException("Illegal proportion: " + proportion);
+            }
+            proportions[operation.ordinal()] = proportion;
+            return this;
+        }
+
+        public Workload distribution(Distribution distribution) {
+            this.distribution = distribution;
+            return this;
+        }
+
+        public Workload trace(Path trace) {
+            this.trace = trace;
+            return this;
+        }
+
+        public Workload reportInterval(long reportIntervalMillis) {
+            if (reportIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Illegal report interval: " + reportIntervalMillis);
+            }
+            this.reportIntervalMillis = reportIntervalMillis;
+            return this;
+        }
+
+        public Workload seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    // Log-linear buckets in the spirit of HdrHistogram: 64 sub-buckets per power of two, under 1.6% error
+    public static class LatencyHistogram {
+
+        private static final int SUB_BITS = 7;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int HALF_COUNT = SUB_COUNT >> 1;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * HALF_COUNT + SUB_COUNT];
+        private long totalCount;
+        private long max;
+
+        public void record(long value) {
+            counts[indexOf(Math.max(0, value))]++;
+            totalCount++;
+            max = Math.max(max, value);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            totalCount += other.totalCount;
+            max = Math.max(max, other.max);
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long percentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, highestValueAt(i));
+                }
+            }
+            return max;
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return shift * HALF_COUNT + (int) (value >>> shift);
+        }
+
+        private static long highestValueAt(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int shift = index / HALF_COUNT - 1;
+            long sub = index % HALF_COUNT + HALF_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    private static class KeyChooser {
+
+        private static final double ZIPFIAN_CONSTANT = 0.99;
+        private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+        private static final long FNV_PRIME = 1099511628211L;
+
+        private final Distribution distribution;
+        private final long items;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final double halfPowTheta;
+
+        private KeyChooser(Distribution distribution, long items) {
+            this.distribution = distribution;
+            this.items = Math.max(1, items);
+            double zeta2 = 1 + Math.pow(0.5, ZIPFIAN_CONSTANT);
+            double sum = 0;
+            if (distribution != Distribution.UNIFORM) {
+                for (long i = 1; i <= this.items; i++) {
+                    sum += 1 / Math.pow(i, ZIPFIAN_CONSTANT);
+                }
+            }
+            this.zetan = sum;
+            this.alpha = 1 / (1 - ZIPFIAN_CONSTANT);
+            this.eta = (1 - Math.pow(2.0 / this.items, 1 - ZIPFIAN_CONSTANT)) / (1 - zeta2 / zetan);
+            this.halfPowTheta = Math.pow(0.5, ZIPFIAN_CONSTANT);
+        }
+
+        private long next(Random random, long maxKey) {
+            switch (distribution) {
+                case UNIFORM:
+                    return (long) (random.nextDouble() * maxKey);
+                case ZIPFIAN:
+                    // Scrambled so the hot keys are spread over the key space
+                    return Math.floorMod(fnv(zipfian(random)), Math.max(1, maxKey));
+                default:
+                    return Math.max(0, maxKey - 1 - zipfian(random));
+            }
+        }
+
+        private long zipfian(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + halfPowTheta) {
+                return 1;
+            }
+            return (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        }
+
+        private static long fnv(long value) {
+            long hash = FNV_OFFSET;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+                value >>>= 8;
+            }
+            return hash;
+        }
+    }
+
+    private static class TraceRecord {
+
+        private final Operation operation;
+        private final long key;
+        private final long argument;
+
+        private TraceRecord(Operation operation, long key, long argument) {
+            this.operation = operation;
+            this.key = key;
+            this.argument = argument;
+        }
+    }
+
+    public static class Report {
+
+        private final LatencyHistogram[] histograms;
+        private final long elapsedNanos;
+        private final long gcCount;
+        private final long gcMillis;
+        private final long allocatedBytes;
+
+        private Report(LatencyHistogram[] histograms, long elapsedNanos, long gcCount, long gcMillis,
+                       long allocatedBytes) {
+            this.histograms = histograms;
+            this.elapsedNanos = elapsedNanos;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public LatencyHistogram getHistogram(Operation operation) {
+            return histograms[operation.ordinal()];
+        }
+
+        public double getThroughput() {
+            long total = 0;
+            for (LatencyHistogram histogram : histograms) {
+                total += histogram.getTotalCount();
+            }
+            return total * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public void print(PrintStream out) {
+            out.printf("[OVERALL] RunTime(ms)=%.1f Throughput(ops/sec)=%.1f%n", elapsedNanos / 1e6, getThroughput());
+            out.printf("[GC] Count=%d Time(ms)=%d Allocated(MB)=%.1f%n", gcCount, gcMillis,
+                    allocatedBytes / (1024.0 * 1024));
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram histogram = getHistogram(operation);
+                if (histogram.getTotalCount() == 0) {
+                    continue;
+                }
+                out.printf("[%s] Operations=%d p50(us)=%.1f p90(us)=%.1f p99(us)=%.1f p99.9(us)=%.1f max(us)=%.1f%n",
+                        operation, histogram.getTotalCount(), histogram.percentile(50) / 1e3,
+                        histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                        histogram.percentile(99.9) / 1e3, histogram.getMax() / 1e3);
+            }
+        }
+    }
+
+    private final Supplier<? extends MyMap<Long, Long>> mapFactory;
+    private final Workload workload;
+    private final PrintStream out;
+
+    public MyMapLoadGenerator(Supplier<? extends MyMap<Long, Long>> mapFactory, Workload workload,
+                              PrintStream out) {
+        this.mapFactory = mapFactory;
+        this.workload = workload;
+        this.out = out;
+    }
+
+    // Implementations are not thread-safe, so every operation runs while holding the map's monitor
+    public Report run() throws IOException, InterruptedException {
+        MyMap<Long, Long> map = mapFactory.get();
+        TraceRecord[] trace = workload.trace == null ? null : readTrace(workload.trace);
+        AtomicLong keyCount = new AtomicLong();
+        if (trace == null) {
+            for (long key = 0; key < workload.recordCount; key++) {
+                map.put(key, key);
+            }
+            keyCount.set(workload.recordCount);
+        }
+        KeyChooser chooser = trace == null ? new KeyChooser(workload.distribution, workload.recordCount) : null;
+        double[] proportions = workload.proportions.clone();
+        // Only ordered maps can start iterating at a key; MyRadixTreeMap seeks by prefix alone, which a
+        // fixed-width key does not have
+        MySortedMap<Long, Long> sorted = map instanceof MySortedMap ? (MySortedMap<Long, Long>) map : null;
+        if (sorted == null) {
+            // Reading from the start of iteration order instead would measure a different operation
+            int scans = 0;
+            if (trace != null) {
+                List<TraceRecord> kept = new ArrayList<>(trace.length);
+                for (TraceRecord record : trace) {
+                    if (record.operation != Operation.SCAN) {
+                        kept.add(record);
+                    }
+                }
+                scans = trace.length - kept.size();
+                trace = kept.toArray(new TraceRecord[0]);
+            }
+            if (scans > 0 || trace == null && proportions[Operation.SCAN.ordinal()] > 0) {
+                out.printf("Warning: %s cannot seek to a key, SCAN is dropped from the mix%n",
+                        map.getClass().getSimpleName());
+            }
+            proportions[Operation.SCAN.ordinal()] = 0;
+        }
+        TraceRecord[] records = trace;
+        double[] cumulative = trace == null ? cumulative(proportions) : null;
+        int threads = workload.threads;
+        LatencyHistogram[][] histograms = new LatencyHistogram[threads][Operation.values().length];
+        Thread[] workers = new Thread[threads];
+        LongAdder completed = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long total = trace == null ? workload.operationCount : trace.length;
+        for (int t = 0; t < threads; t++) {
+            LatencyHistogram[] own = histograms[t];
+            for (int i = 0; i < own.length; i++) {
+                own[i] = new LatencyHistogram();
+            }
+            int threadIndex = t;
+            Random random = new Random(workload.seed + t);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long allocatedBefore = currentThreadAllocatedBytes();
+                for (long i = threadIndex; i < total; i += threads) {
+                    Operation operation;
+                    long key;
+                    long argument;
+                    if (records != null) {
+                        operation = records[(int) i].operation;
+                        key = records[(int) i].key;
+                        argument = records[(int) i].argument;
+                    } else {
+                        operation = choose(cumulative, random.nextDouble());
+                        key = operation == Operation.INSERT
+                                ? keyCount.getAndIncrement() : chooser.next(random, keyCount.get());
+                        argument = operation == Operation.SCAN ? workload.scanLength : random.nextLong();
+                    }
+                    long begin = System.nanoTime();
+                    execute(map, sorted, operation, key, argument);
+                    own[operation.ordinal()].record(System.nanoTime() - begin);
+                    completed.increment();
+                }
+                allocated.add(currentThreadAllocatedBytes() - allocatedBefore);
+            }, "MyMapLoadGenerator-" + t);
+            workers[t].start();
+        }
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long begin = System.nanoTime();
+        start.countDown();
+        long lastCompleted = 0;
+        long lastTime = begin;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                worker.join(workload.reportIntervalMillis);
+                long now = System.nanoTime();
+                if (now - lastTime >= workload.reportIntervalMillis * 1_000_000L) {
+                    long done = completed.sum();
+                    out.printf("%.1f sec: %d operations; %.1f current ops/sec%n", (now - begin) / 1e9, done,
+                            (done - lastCompleted) * 1e9 / (now - lastTime));
+                    lastCompleted = done;
+                    lastTime = now;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        LatencyHistogram[] merged = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = new LatencyHistogram();
+            for (LatencyHistogram[] own : histograms) {
+                merged[i].add(own[i]);
+            }
+        }
+        return new Report(merged, elapsed, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore,
+                allocated.sum());
+    }
+
+    // sorted is the same map when it is ordered, otherwise null and SCAN is never chosen
+    private static void execute(MyMap<Long, Long> map, MySortedMap<Long, Long> sorted, Operation operation,
+                                long key, long argument) {
+        synchronized (map) {
+            switch (operation) {
+                case READ:
+                    map.get(key);
+                    break;
+                case INSERT:
+                case UPDATE:
+                    map.put(key, argument);
+                    break;
+                case DELETE:
+                    map.remove(key);
+                    break;
+                default:
+                    // Keys are distinct longs, so [key, key + argument) holds at most argument entries; the
+                    // iterator is always drained, which releases the segments a MyLsmTreeMap pinned
+                    Long to = key > Long.MAX_VALUE - argument ? null : key + argument;
+                    Iterator<MyMap.Entry<Long, Long>> iter = sorted.rangeIterator(key, to);
+                    while (iter.hasNext()) {
+                        iter.next();
+                    }
+            }
+        }
+    }
+
+    private static double[] cumulative(double[] proportions) {
+        double sum = 0;
+        for (double proportion : proportions) {
+            sum += proportion;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("No operations in the mix");
+        }
+        double[] toReturn = new double[proportions.length];
+        double running = 0;
+        for (int i = 0; i < proportions.length; i++) {
+            running += proportions[i] / sum;
+            toReturn[i] = running;
+        }
+        return toReturn;
+    }
+
+    private static Operation choose(double[] cumulative, double random) {
+        for (int i = 0; i < cumulative.length - 1; i++) {
+            if (random < cumulative[i]) {
+                return Operation.values()[i];
+            }
+        }
+        return Operation.values()[cumulative.length - 1];
+    }
+
+    // One operation per line: "READ key", "INSERT key value", "UPDATE key value", "DELETE key", "SCAN key count"
+    private static TraceRecord[] readTrace(Path path) throws IOException {
+        List<TraceRecord> records = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                try {
+                    Operation operation = Operation.valueOf(parts[0].toUpperCase());
+                    long key = Long.parseLong(parts[1]);
+                    long argument = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+                    records.add(new TraceRecord(operation, key, argument));
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed trace line " + lineNumber + ": " + line, e);
+                }
+            }
+        }
+        return records.toArray(new TraceRecord[0]);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof ThreadMXBean
+                ? Math.max(0, ((ThreadMXBean) bean).getCurrentThreadAllocatedBytes()) : 0;
+    }
+
+    // Arguments are key=value pairs, e.g. map=maps.MyTreeMap threads=4 read=0.5 update=0.5 distribution=zipfian
+    public static void main(String[] args) throws Exception {
+        Workload workload = new Workload();
+        String mapClass = MyHashMap.class.getName();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            String name = arg.substring(0, split).toLowerCase();
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "map":
+                    mapClass = value;
+                    break;
+                case "records":
+                    workload.recordCount(Long.parseLong(value));
+                    break;
+                case "operations":
+                    workload.operationCount(Long.parseLong(value));
+                    break;
+                case "threads":
+                    workload.threads(Integer.parseInt(value));
+                    break;
+                case "scanlength":
+                    workload.scanLength(Integer.parseInt(value));
+                    break;
+                case "distribution":
+                    workload.distribution(Distribution.valueOf(value.toUpperCase()));
+                    break;
+                case "trace":
+                    workload.trace(Paths.get(value));
+                    break;
+                case "interval":
+                    workload.reportInterval(Long.parseLong(value));
+                    break;
+                case "seed":
+                    workload.seed(Long.parseLong(value));
+                    break;
+                default:
+                    workload.proportion(Operation.valueOf(name.toUpperCase()), Double.parseDouble(value));
+            }
+        }
+        Class<?> type = Class.forName(mapClass);
+        Supplier<MyMap<Long, Long>> factory = () -> {
+            try {
+                return (MyMap<Long, Long>) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Unable to instantiate " + type.getName(), e);
+            }
+        };
+        new MyMapLoadGenerator(factory, workload, System.out).run().print(System.out);
+    }
+}
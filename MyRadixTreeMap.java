@@ -0,0 +1,850 @@
+package maps;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Function;
+
+// Adaptive radix tree (Leis et al., ICDE 2013) ordered by the unsigned bytes of the encoded keys.
+// For String keys that is UTF-8 order, which matches code point order rather than String.compareTo.
+// Leaves keep only the key, which is encoded again when a lookup has to compare it byte by byte, and
+// compressed paths keep their first bytes inline: lookups skip the rest optimistically and the leaf
+// they reach settles the match, as in the paper's hybrid scheme.
+public class MyRadixTreeMap<K, V> implements MyMap<K, V> {
+
+    private static final int MAX_INLINE_PREFIX = 8;
+
+    private static class Leaf<K, V> implements MyMap.Entry<K, V> {
+
+        private final K key;
+        private V value;
+
+        private Leaf(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MyMap.Entry
+                    && Objects.equals(key, ((MyMap.Entry) o).getKey())
+                    && Objects.equals(value, ((MyMap.Entry) o).getValue());
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            V toReturn = this.value;
+            this.value = value;
+            return toReturn;
+        }
+
+        @Override
+        public String toString() {
+            return (key instanceof byte[] ? Arrays.toString((byte[]) key) : String.valueOf(key)) + "=" + value;
+        }
+    }
+
+    // Children are either inner nodes or leaves; a key ending inside the tree is kept in terminal
+    private abstract static class Node {
+
+        // First MAX_INLINE_PREFIX bytes of the compressed path, big-endian; prefixLength may be longer
+        private long prefix;
+        private int prefixLength;
+        private Leaf<?, ?> terminal;
+        protected int count;
+
+        abstract Object child(int b);
+
+        abstract void setChild(int b, Object child);
+
+        // Returns this node or its larger replacement
+        abstract Node addChild(int b, Object child);
+
+        // Returns this node or its smaller replacement
+        abstract Node removeChild(int b);
+
+        // Smallest byte >= from that has a child, -1 if there is none
+        abstract int nextByte(int from);
+
+        Node copyHeader(Node from) {
+            this.prefix = from.prefix;
+            this.prefixLength = from.prefixLength;
+            this.terminal = from.terminal;
+            return this;
+        }
+
+        int prefixByte(int i) {
+            return (int) (prefix >>> 56 - 8 * i) & 0xFF;
+        }
+
+        // Optimistic: only the inline bytes are compared, the leaf reached below confirms the rest
+        boolean prefixMatches(byte[] key, int depth) {
+            if (prefixLength > key.length - depth) {
+                return false;
+            }
+            for (int i = Math.min(prefixLength, MAX_INLINE_PREFIX) - 1; i >= 0; i--) {
+                if (prefixByte(i) != (key[depth + i] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setPrefix(byte[] bytes, int from, int length) {
+            long packed = 0;
+            for (int i = Math.min(length, MAX_INLINE_PREFIX) - 1; i >= 0; i--) {
+                packed |= (bytes[from + i] & 0xFFL) << 56 - 8 * i;
+            }
+            prefix = packed;
+            prefixLength = length;
+        }
+    }
+
+    private static class Node4 extends Node {
+
+        // Sorted child bytes packed little-endian, the i-th in bits 8i to 8i + 7
+        private int keys;
+        private final Object[] children = new Object[4];
+
+        @Override
+        Object child(int b) {
+            for (int i = 0; i < count; i++) {
+                if (keyAt(i) == b) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void setChild(int b, Object child) {
+            for (int i = 0; i < count; i++) {
+                if (keyAt(i) == b) {
+                    children[i] = child;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        Node addChild(int b, Object child) {
+            if (count == children.length) {
+                Node16 grown = new Node16();
+                grown.copyHeader(this);
+                for (int i = 0; i < count; i++) {
+                    grown.addChild(keyAt(i), children[i]);
+                }
+                return grown.addChild(b, child);
+            }
+            int pos = count;
+            while (pos > 0 && keyAt(pos - 1) > b) {
+                setKeyAt(pos, keyAt(pos - 1));
+                children[pos] = children[pos - 1];
+                pos--;
+            }
+            setKeyAt(pos, b);
+            children[pos] = child;
+            count++;
+            return this;
+        }
+
+        @Override
+        Node removeChild(int b) {
+            for (int i = 0; i < count; i++) {
+                if (keyAt(i) == b) {
+                    for (int j = i + 1; j < count; j++) {
+                        setKeyAt(j - 1, keyAt(j));
+                        children[j - 1] = children[j];
+                    }
+                    children[--count] = null;
+                    break;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        int nextByte(int from) {
+            for (int i = 0; i < count; i++) {
+                if (keyAt(i) >= from) {
+                    return keyAt(i);
+                }
+            }
+            return -1;
+        }
+
+        private int keyAt(int i) {
+            return keys >>> 8 * i & 0xFF;
+        }
+
+        private void setKeyAt(int i, int b) {
+            keys = keys & ~(0xFF << 8 * i) | b << 8 * i;
+        }
+    }
+
+    private static class Node16 extends Node {
+
+        private final byte[] keys = new byte[16];
+        private final Object[] children = new Object[16];
+
+        @Override
+        Object child(int b) {
+            int pos = find(b);
+            return pos < 0 ? null : children[pos];
+        }
+
+        @Override
+        void setChild(int b, Object child) {
+            int pos = find(b);
+            if (pos >= 0) {
+                children[pos] = child;
+            }
+        }
+
+        @Override
+        Node addChild(int b, Object child) {
+            if (count == keys.length) {
+                Node48 grown = new Node48();
+                grown.copyHeader(this);
+                for (int i = 0; i < count; i++) {
+                    grown.addChild(keys[i] & 0xFF, children[i]);
+                }
+                return grown.addChild(b, child);
+            }
+            int pos = -find(b) - 1;
+            System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+            System.arraycopy(children, pos, children, pos + 1, count - pos);
+            keys[pos] = (byte) b;
+            children[pos] = child;
+            count++;
+            return this;
+        }
+
+        @Override
+        Node removeChild(int b) {
+            int pos = find(b);
+            if (pos < 0) {
+                return this;
+            }
+            System.arraycopy(keys, pos + 1, keys, pos, count - pos - 1);
+            System.arraycopy(children, pos + 1, children, pos, count - pos - 1);
+            children[--count] = null;
+            if (count > 3) {
+                return this;
+            }
+            Node4 shrunk = new Node4();
+            shrunk.copyHeader(this);
+            for (int i = 0; i < count; i++) {
+                shrunk.addChild(keys[i] & 0xFF, children[i]);
+            }
+            return shrunk;
+        }
+
+        @Override
+        int nextByte(int from) {
+            int pos = find(from);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            return pos < count ? keys[pos] & 0xFF : -1;
+        }
+
+        private int find(int b) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = low + high >>> 1;
+                int midByte = keys[mid] & 0xFF;
+                if (midByte < b) {
+                    low = mid + 1;
+                } else if (midByte > b) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    private static class Node48 extends Node {
+
+        // Slot + 1 of the child for every byte, 0 when absent
+        private final byte[] index = new byte[256];
+        private final Object[] children = new Object[48];
+
+        @Override
+        Object child(int b) {
+            int slot = index[b];
+            return slot == 0 ? null : children[slot - 1];
+        }
+
+        @Override
+        void setChild(int b, Object child) {
+            int slot = index[b];
+            if (slot != 0) {
+                children[slot - 1] = child;
+            }
+        }
+
+        @Override
+        Node addChild(int b, Object child) {
+            if (count == children.length) {
+                Node256 grown = new Node256();
+                grown.copyHeader(this);
+                for (int i = 0; i < index.length; i++) {
+                    if (index[i] != 0) {
+                        grown.addChild(i, children[index[i] - 1]);
+                    }
+                }
+                return grown.addChild(b, child);
+            }
+            int slot = 0;
+            while (children[slot] != null) {
+                slot++;
+            }
+            children[slot] = child;
+            index[b] = (byte) (slot + 1);
+            count++;
+            return this;
+        }
+
+        @Override
+        Node removeChild(int b) {
+            int slot = index[b];
+            if (slot == 0) {
+                return this;
+            }
+            children[slot - 1] = null;
+            index[b] = 0;
+            if (--count > 12) {
+                return this;
+            }
+            Node16 shrunk = new Node16();
+            shrunk.copyHeader(this);
+            for (int i = 0; i < index.length; i++) {
+                if (index[i] != 0) {
+                    shrunk.addChild(i, children[index[i] - 1]);
+                }
+            }
+            return shrunk;
+        }
+
+        @Override
+        int nextByte(int from) {
+            for (int i = from; i < index.length; i++) {
+                if (index[i] != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Node256 extends Node {
+
+        private final Object[] children = new Object[256];
+
+        @Override
+        Object child(int b) {
+            return children[b];
+        }
+
+        @Override
+        void setChild(int b, Object child) {
+            children[b] = child;
+        }
+
+        @Override
+        Node addChild(int b, Object child) {
+            children[b] = child;
+            count++;
+            return this;
+        }
+
+        @Override
+        Node removeChild(int b) {
+            if (children[b] == null) {
+                return this;
+            }
+            children[b] = null;
+            if (--count > 37) {
+                return this;
+            }
+            Node48 shrunk = new Node48();
+            shrunk.copyHeader(this);
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null) {
+                    shrunk.addChild(i, children[i]);
+                }
+            }
+            return shrunk;
+        }
+
+        @Override
+        int nextByte(int from) {
+            for (int i = from; i < children.length; i++) {
+                if (children[i] != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private class EntryIterator implements Iterator<MyMap.Entry<K, V>> {
+
+        private final int expectedModCount = modCount;
+        // Per inner node on the path: next byte to visit, -1 while its terminal is still pending
+        private Node[] nodes = new Node[8];
+        private int[] nextBytes = new int[8];
+        private int depth;
+        private Leaf<K, V> nextEntry;
+
+        private EntryIterator(Object top) {
+            if (top instanceof Leaf) {
+                nextEntry = cast(top);
+            } else if (top != null) {
+                push((Node) top);
+                nextEntry = advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (nextEntry == null) {
+                throw new NoSuchElementException();
+            }
+            if (expectedModCount != modCount) {
+                throw new java.util.ConcurrentModificationException();
+            }
+            Leaf<K, V> toReturn = nextEntry;
+            nextEntry = advance();
+            return toReturn;
+        }
+
+        private void push(Node node) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth << 1);
+                nextBytes = Arrays.copyOf(nextBytes, depth << 1);
+            }
+            nodes[depth] = node;
+            nextBytes[depth++] = -1;
+        }
+
+        private Leaf<K, V> advance() {
+            while (depth > 0) {
+                Node node = nodes[depth - 1];
+                if (nextBytes[depth - 1] < 0) {
+                    nextBytes[depth - 1] = 0;
+                    if (node.terminal != null) {
+                        return cast(node.terminal);
+                    }
+                }
+                int b = nextBytes[depth - 1] > 255 ? -1 : node.nextByte(nextBytes[depth - 1]);
+                if (b < 0) {
+                    nodes[--depth] = null;
+                    continue;
+                }
+                nextBytes[depth - 1] = b + 1;
+                Object child = node.child(b);
+                if (child instanceof Leaf) {
+                    return cast(child);
+                }
+                push((Node) child);
+            }
+            return null;
+        }
+    }
+
+    private final Function<? super K, byte[]> encoder;
+    // Set for byte[] keys: the encoded copy is the key, so nothing is ever encoded twice
+    private final boolean keysAreBytes;
+    private Object root;
+    private int size;
+    private int modCount;
+    private V previous;
+
+    public MyRadixTreeMap(Function<? super K, byte[]> encoder) {
+        this(encoder, false);
+    }
+
+    private MyRadixTreeMap(Function<? super K, byte[]> encoder, boolean keysAreBytes) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("Key encoder is null");
+        }
+        this.encoder = encoder;
+        this.keysAreBytes = keysAreBytes;
+    }
+
+    public static <V> MyRadixTreeMap<String, V> forStrings() {
+        return new MyRadixTreeMap<>(key -> key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Keys are copied on put, and entries hand out the copy
+    public static <V> MyRadixTreeMap<byte[], V> forByteArrays() {
+        return new MyRadixTreeMap<>(byte[]::clone, true);
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return findLeaf(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(V value) {
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            if (Objects.equals(iter.next().getValue(), value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> entryIterator() {
+        return new EntryIterator(root);
+    }
+
+    @Override
+    public V get(K key) {
+        Leaf<K, V> leaf = findLeaf(key);
+        return leaf == null ? null : leaf.value;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Entries whose keys start with prefix, in key order
+    public Iterator<Entry<K, V>> prefixIterator(K prefix) {
+        return new EntryIterator(findPrefixRoot(encoder.apply(prefix)));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Null keys are not supported");
+        }
+        byte[] bytes = encoder.apply(key);
+        previous = null;
+        // A byte[] map keeps the copy the encoder made, K being byte[] there
+        K stored = keysAreBytes ? cast(bytes) : key;
+        root = insert(root, new Leaf<>(stored, value), bytes, 0);
+        V toReturn = previous;
+        previous = null;
+        return toReturn;
+    }
+
+    @Override
+    public V remove(K key) {
+        if (key == null) {
+            return null;
+        }
+        previous = null;
+        root = delete(root, key, encoder.apply(key), 0);
+        V toReturn = previous;
+        previous = null;
+        return toReturn;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder toReturn = new StringBuilder("{");
+        Iterator<Entry<K, V>> iter = entryIterator();
+        while (iter.hasNext()) {
+            toReturn.append(iter.next());
+            if (iter.hasNext()) {
+                toReturn.append(", ");
+            }
+        }
+        return toReturn.append('}').toString();
+    }
+
+    private Leaf<K, V> findLeaf(K key) {
+        if (key == null) {
+            return null;
+        }
+        byte[] bytes = encoder.apply(key);
+        Object curNode = root;
+        int depth = 0;
+        while (curNode instanceof Node) {
+            Node node = (Node) curNode;
+            if (!node.prefixMatches(bytes, depth)) {
+                return null;
+            }
+            depth += node.prefixLength;
+            if (depth == bytes.length) {
+                Leaf<K, V> terminal = cast(node.terminal);
+                return terminal != null && matches(terminal, key, bytes) ? terminal : null;
+            }
+            curNode = node.child(bytes[depth++] & 0xFF);
+        }
+        Leaf<K, V> leaf = cast(curNode);
+        return leaf != null && matches(leaf, key, bytes) ? leaf : null;
+    }
+
+    private Object findPrefixRoot(byte[] prefix) {
+        Object curNode = root;
+        int depth = 0;
+        while (curNode instanceof Node && depth < prefix.length) {
+            Node node = (Node) curNode;
+            int matched = prefixMismatch(node, prefix, depth);
+            if (depth + matched == prefix.length) {
+                return node;
+            }
+            if (matched < node.prefixLength) {
+                return null;
+            }
+            depth += node.prefixLength;
+            curNode = node.child(prefix[depth++] & 0xFF);
+        }
+        if (curNode instanceof Leaf) {
+            byte[] bytes = bytesOf(cast(curNode));
+            return bytes.length >= prefix.length
+                    && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length) ? curNode : null;
+        }
+        return curNode;
+    }
+
+    // Paths are matched exactly here, so every byte compared on the way down is known to be right
+    private Object insert(Object curNode, Leaf<K, V> leaf, byte[] bytes, int depth) {
+        if (curNode == null) {
+            size++;
+            modCount++;
+            return leaf;
+        }
+        if (curNode instanceof Leaf) {
+            Leaf<K, V> existing = cast(curNode);
+            byte[] existingBytes = !keysAreBytes && Objects.equals(existing.key, leaf.key) ? bytes : bytesOf(existing);
+            if (Arrays.equals(existingBytes, bytes)) {
+                previous = existing.value;
+                existing.value = leaf.value;
+                return existing;
+            }
+            int common = depth;
+            int limit = Math.min(existingBytes.length, bytes.length);
+            while (common < limit && existingBytes[common] == bytes[common]) {
+                common++;
+            }
+            Node node = new Node4();
+            node.setPrefix(bytes, depth, common - depth);
+            node = attach(node, existing, existingBytes, common);
+            size++;
+            modCount++;
+            return attach(node, leaf, bytes, common);
+        }
+        Node node = (Node) curNode;
+        int matched = prefixMismatch(node, bytes, depth);
+        if (matched < node.prefixLength) {
+            // Split the compressed path where the new key leaves it
+            byte[] path = node.prefixLength > MAX_INLINE_PREFIX ? bytesOf(anyLeaf(node)) : null;
+            Node parent = new Node4();
+            parent.setPrefix(bytes, depth, matched);
+            int splitByte = path == null ? node.prefixByte(matched) : path[depth + matched] & 0xFF;
+            int rest = node.prefixLength - matched - 1;
+            if (path != null) {
+                node.setPrefix(path, depth + matched + 1, rest);
+            } else {
+                node.prefix = rest == 0 ? 0 : node.prefix << 8 * (matched + 1);
+                node.prefixLength = rest;
+            }
+            parent = parent.addChild(splitByte, node);
+            size++;
+            modCount++;
+            return attach(parent, leaf, bytes, depth + matched);
+        }
+        depth += node.prefixLength;
+        if (depth == bytes.length) {
+            if (node.terminal == null) {
+                node.terminal = leaf;
+                size++;
+                modCount++;
+            } else {
+                Leaf<K, V> terminal = cast(node.terminal);
+                previous = terminal.value;
+                terminal.value = leaf.value;
+            }
+            return node;
+        }
+        int b = bytes[depth] & 0xFF;
+        Object child = node.child(b);
+        if (child == null) {
+            size++;
+            modCount++;
+            return node.addChild(b, leaf);
+        }
+        Object newChild = insert(child, leaf, bytes, depth + 1);
+        if (newChild != child) {
+            node.setChild(b, newChild);
+        }
+        return node;
+    }
+
+    private Object delete(Object curNode, K key, byte[] bytes, int depth) {
+        if (curNode == null) {
+            return null;
+        }
+        if (curNode instanceof Leaf) {
+            Leaf<K, V> leaf = cast(curNode);
+            if (!matches(leaf, key, bytes)) {
+                return leaf;
+            }
+            previous = leaf.value;
+            size--;
+            modCount++;
+            return null;
+        }
+        Node node = (Node) curNode;
+        if (!node.prefixMatches(bytes, depth)) {
+            return node;
+        }
+        depth += node.prefixLength;
+        if (depth == bytes.length) {
+            Leaf<K, V> terminal = cast(node.terminal);
+            if (terminal == null || !matches(terminal, key, bytes)) {
+                return node;
+            }
+            previous = terminal.value;
+            node.terminal = null;
+            size--;
+            modCount++;
+            return compact(node);
+        }
+        int b = bytes[depth] & 0xFF;
+        Object child = node.child(b);
+        if (child == null) {
+            return node;
+        }
+        Object newChild = delete(child, key, bytes, depth + 1);
+        if (newChild == child) {
+            return node;
+        }
+        if (newChild == null) {
+            node = node.removeChild(b);
+        } else {
+            node.setChild(b, newChild);
+        }
+        return compact(node);
+    }
+
+    // Collapses nodes left with a single path so the tree stays path-compressed
+    private static Object compact(Node node) {
+        if (node.count == 0) {
+            return node.terminal;
+        }
+        if (node.count > 1 || node.terminal != null) {
+            return node;
+        }
+        int b = node.nextByte(0);
+        Object child = node.child(b);
+        if (child instanceof Leaf) {
+            return child;
+        }
+        Node childNode = (Node) child;
+        int length = node.prefixLength;
+        long merged = node.prefix;
+        if (length < MAX_INLINE_PREFIX) {
+            merged |= (long) b << 56 - 8 * length;
+            if (length + 1 < MAX_INLINE_PREFIX) {
+                merged |= childNode.prefix >>> 8 * (length + 1);
+            }
+        }
+        childNode.prefix = merged;
+        childNode.prefixLength = length + 1 + childNode.prefixLength;
+        return childNode;
+    }
+
+    private static Node attach(Node node, Leaf<?, ?> leaf, byte[] bytes, int depth) {
+        if (bytes.length == depth) {
+            node.terminal = leaf;
+            return node;
+        }
+        return node.addChild(bytes[depth] & 0xFF, leaf);
+    }
+
+    // Any leaf below node; all of them share its path
+    private static <K, V> Leaf<K, V> anyLeaf(Node node) {
+        while (node.terminal == null) {
+            Object child = node.child(node.nextByte(0));
+            if (child instanceof Leaf) {
+                return cast(child);
+            }
+            node = (Node) child;
+        }
+        return cast(node.terminal);
+    }
+
+    // Slots hold nodes and leaves alike, so leaves come back untyped; every leaf of a map is a
+    // Leaf<K, V>, which makes this the one conversion the compiler cannot check
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
+    private byte[] bytesOf(Leaf<K, V> leaf) {
+        return keysAreBytes ? (byte[]) leaf.key : encoder.apply(leaf.key);
+    }
+
+    // Equal keys are taken to encode alike, so only a different key is encoded again to compare
+    private boolean matches(Leaf<K, V> leaf, K key, byte[] bytes) {
+        if (keysAreBytes) {
+            return Arrays.equals((byte[]) leaf.key, bytes);
+        }
+        return Objects.equals(leaf.key, key) || Arrays.equals(encoder.apply(leaf.key), bytes);
+    }
+
+    // Exact number of prefix bytes matching key from depth on; bytes past the inline ones come from a leaf
+    private int prefixMismatch(Node node, byte[] key, int depth) {
+        int limit = Math.min(node.prefixLength, key.length - depth);
+        int inline = Math.min(limit, MAX_INLINE_PREFIX);
+        int i = 0;
+        while (i < inline && node.prefixByte(i) == (key[depth + i] & 0xFF)) {
+            i++;
+        }
+        if (i < inline || i == limit) {
+            return i;
+        }
+        byte[] path = bytesOf(anyLeaf(node));
+        while (i < limit && path[depth + i] == key[depth + i]) {
+            i++;
+        }
+        return i;
+    }
+}
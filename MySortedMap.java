@@ -0,0 +1,10 @@
+package maps;
+
+import java.util.Iterator;
+
+// Maps that keep their keys in order and can start iterating at any key
+public interface MySortedMap<K, V> extends MyMap<K, V> {
+
+    // Entries with fromKey <= key < toKey in key order; a null bound leaves that end open
+    Iterator<MyMap.Entry<K, V>> rangeIterator(K fromKey, K toKey);
+}
@@ -1,11 +1,22 @@
 package maps;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
-public class MyTreeMap<K, V> implements MyMap<K, V> {
+public class MyTreeMap<K, V> implements MySortedMap<K, V> {
 
     private static final boolean BLACK = true;
     private static final boolean RED = false;
+    private static final int DEFAULT_RENDER_DEPTH = 16;
+    private static final int PARALLEL_BLACK_HEIGHT = 9;
+
+    private enum SetOperation {
+        UNION, INTERSECTION, DIFFERENCE
+    }
 
     private static class SimpleEntry<K, V> implements Entry<K, V> {
 
@@ -61,9 +72,16 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
 
         private int expectedModCount = modCount;
         private SimpleEntry<K, V> nextEntry;
+        // Exclusive upper bound, null for none
+        private final K toKey;
 
         private EntryIterator() {
-            this.nextEntry = minimal(root);
+            this(first, null);
+        }
+
+        private EntryIterator(SimpleEntry<K, V> nextEntry, K toKey) {
+            this.toKey = toKey;
+            this.nextEntry = bounded(nextEntry);
         }
 
         @Override
@@ -80,15 +98,78 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
                 throw new ConcurrentModificationException();
             }
             SimpleEntry<K, V> toReturn = nextEntry;
-            nextEntry = successor(nextEntry);
+            nextEntry = bounded(successor(nextEntry));
             return toReturn;
         }
+
+        private SimpleEntry<K, V> bounded(SimpleEntry<K, V> entry) {
+            return entry == null || toKey == null || compare(entry.key, toKey) < 0 ? entry : null;
+        }
+    }
+
+    // A detached tree and its black height, counting the top only when it is black; carried along so
+    // that splits and joins never walk a spine to measure a tree
+    private static final class Tree<K, V> {
+
+        private final SimpleEntry<K, V> top;
+        private final int height;
+
+        private Tree(SimpleEntry<K, V> top, int height) {
+            this.top = top;
+            this.height = height;
+        }
+    }
+
+    // The entries below a key, the entry equal to it and the entries above it
+    private static final class Split<K, V> {
+
+        private final Tree<K, V> below;
+        private final SimpleEntry<K, V> equal;
+        private final Tree<K, V> above;
+
+        private Split(Tree<K, V> below, SimpleEntry<K, V> equal, Tree<K, V> above) {
+            this.below = below;
+            this.equal = equal;
+            this.above = above;
+        }
+    }
+
+    private class SetOperationTask extends RecursiveTask<Tree<K, V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SetOperation operation;
+        private final Tree<K, V> mine;
+        private final SimpleEntry<K, V> other;
+        private final int otherHeight;
+        private final int parallelDepth;
+        private final LongAdder matches;
+
+        private SetOperationTask(SetOperation operation, Tree<K, V> mine, SimpleEntry<K, V> other,
+                                 int otherHeight, int parallelDepth, LongAdder matches) {
+            this.operation = operation;
+            this.mine = mine;
+            this.other = other;
+            this.otherHeight = otherHeight;
+            this.parallelDepth = parallelDepth;
+            this.matches = matches;
+        }
+
+        @Override
+        protected Tree<K, V> compute() {
+            return apply(operation, mine, other, otherHeight, parallelDepth, matches);
+        }
     }
 
     private Comparator<K> comparator;
+    // Leftmost and rightmost entries, so keys beyond either end are linked without a descent from root
+    private SimpleEntry<K, V> first;
+    private SimpleEntry<K, V> last;
     private int modCount;
     private SimpleEntry<K, V> root;
     private int size;
+    private ValueIndex<K, V> valueIndex;
+    private MyMapChangeStream<K, V> changeStream;
 
     public MyTreeMap() {
         this(null);
@@ -98,10 +179,196 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         this.comparator = comparator;
     }
 
+    // Measured once per bulk operation; from there on heights travel with the trees
+    private static <K, V> int blackHeight(SimpleEntry<K, V> top) {
+        int height = 0;
+        for (SimpleEntry<K, V> curEntry = top; curEntry != null; curEntry = curEntry.left) {
+            if (curEntry.color == BLACK) {
+                height++;
+            }
+        }
+        return height;
+    }
+
+    private static <K, V> boolean colorOf(SimpleEntry<K, V> entry) {
+        return entry == null ? BLACK : entry.color;
+    }
+
+    private static <K, V> Tree<K, V> concat(Tree<K, V> left, Tree<K, V> right) {
+        if (left.top == null) {
+            return right;
+        }
+        if (right.top == null) {
+            return left;
+        }
+        Split<K, V> parts = splitLast(left);
+        return joinTrees(parts.below, parts.equal, right);
+    }
+
+    private static <K, V> SimpleEntry<K, V> copyOf(SimpleEntry<K, V> top) {
+        if (top == null) {
+            return null;
+        }
+        SimpleEntry<K, V> copy = new SimpleEntry<>(top.key, top.value);
+        copy.color = top.color;
+        link(copy, copyOf(top.left), copyOf(top.right));
+        return copy;
+    }
+
+    private static <K, V> SimpleEntry<K, V> detach(SimpleEntry<K, V> entry) {
+        if (entry != null) {
+            entry.parent = null;
+        }
+        return entry;
+    }
+
+    // Bottom-up insert fixup confined to a detached tree of the given black height; the height grows
+    // by one when a recoloring reaches the top
+    private static <K, V> Tree<K, V> fixAfterJoin(SimpleEntry<K, V> entry, int height) {
+        SimpleEntry<K, V> curEntry = entry;
+        while (curEntry.parent != null && curEntry.parent.color == RED) {
+            SimpleEntry<K, V> parent = curEntry.parent;
+            SimpleEntry<K, V> grand = parent.parent;
+            SimpleEntry<K, V> uncle = grand.left == parent ? grand.right : grand.left;
+            if (uncle != null && uncle.color == RED) {
+                parent.color = BLACK;
+                uncle.color = BLACK;
+                grand.color = RED;
+                curEntry = grand;
+            } else if (grand.left == parent) {
+                if (parent.right == curEntry) {
+                    rotateLeft(parent);
+                    parent = curEntry;
+                }
+                parent.color = BLACK;
+                grand.color = RED;
+                rotateRight(grand);
+            } else {
+                if (parent.left == curEntry) {
+                    rotateRight(parent);
+                    parent = curEntry;
+                }
+                parent.color = BLACK;
+                grand.color = RED;
+                rotateLeft(grand);
+            }
+        }
+        boolean grew = curEntry.parent == null && curEntry.color == RED;
+        while (curEntry.parent != null) {
+            curEntry = curEntry.parent;
+        }
+        curEntry.color = BLACK;
+        return new Tree<>(curEntry, grew ? height + 1 : height);
+    }
+
     private static <K, V> boolean isRightChild(SimpleEntry<K, V> toCheck) {
         return toCheck.parent.right == toCheck;
     }
 
+    public static <K, V> MyTreeMap<K, V> join(MyTreeMap<K, V> left, MyTreeMap<K, V> right) {
+        if (left == right) {
+            throw new IllegalArgumentException("Unable to join a map with itself");
+        }
+        SimpleEntry<K, V> leftMax = maximal(left.root);
+        SimpleEntry<K, V> rightMin = minimal(right.root);
+        if (leftMax != null && rightMin != null && left.compare(leftMax.key, rightMin.key) >= 0) {
+            throw new IllegalArgumentException("Keys of the left map must precede keys of the right map");
+        }
+        MyTreeMap<K, V> toReturn = new MyTreeMap<>(left.comparator);
+        // The larger index is taken over and the entries of the other map are added to it
+        MyTreeMap<K, V> indexed = left.valueIndex == null
+                || right.valueIndex != null && right.size > left.size ? right : left;
+        if (indexed.valueIndex != null) {
+            MyTreeMap<K, V> rest = indexed == left ? right : left;
+            toReturn.valueIndex = indexed.valueIndex;
+            indexed.valueIndex = new ValueIndex<>();
+            for (SimpleEntry<K, V> curEntry = rest.first; curEntry != null; curEntry = successor(curEntry)) {
+                toReturn.valueIndex.add(curEntry.value, curEntry.key);
+            }
+        }
+        toReturn.root = concat(new Tree<>(detach(left.root), blackHeight(left.root)),
+                new Tree<>(detach(right.root), blackHeight(right.root))).top;
+        toReturn.size = left.size + right.size;
+        toReturn.updateEdges();
+        left.root = null;
+        right.root = null;
+        left.clear();
+        right.clear();
+        return toReturn;
+    }
+
+    // Links two detached trees around middle; every key of left precedes middle, every key of right follows it
+    private static <K, V> Tree<K, V> joinTrees(Tree<K, V> leftTree, SimpleEntry<K, V> middle,
+                                               Tree<K, V> rightTree) {
+        SimpleEntry<K, V> left = leftTree.top;
+        SimpleEntry<K, V> right = rightTree.top;
+        int leftHeight = leftTree.height;
+        int rightHeight = rightTree.height;
+        if (left != null && left.color == RED) {
+            left.color = BLACK;
+            leftHeight++;
+        }
+        if (right != null && right.color == RED) {
+            right.color = BLACK;
+            rightHeight++;
+        }
+        if (leftHeight == rightHeight) {
+            link(middle, left, right);
+            middle.parent = null;
+            middle.color = BLACK;
+            return new Tree<>(middle, leftHeight + 1);
+        }
+        SimpleEntry<K, V> parent = null;
+        if (leftHeight > rightHeight) {
+            SimpleEntry<K, V> curEntry = left;
+            for (int height = leftHeight; curEntry != null
+                    && (curEntry.color == RED || height != rightHeight); curEntry = curEntry.right) {
+                if (curEntry.color == BLACK) {
+                    height--;
+                }
+                parent = curEntry;
+            }
+            link(middle, curEntry, right);
+            parent.right = middle;
+        } else {
+            SimpleEntry<K, V> curEntry = right;
+            for (int height = rightHeight; curEntry != null
+                    && (curEntry.color == RED || height != leftHeight); curEntry = curEntry.left) {
+                if (curEntry.color == BLACK) {
+                    height--;
+                }
+                parent = curEntry;
+            }
+            link(middle, left, curEntry);
+            parent.left = middle;
+        }
+        middle.parent = parent;
+        middle.color = RED;
+        return fixAfterJoin(middle, Math.max(leftHeight, rightHeight));
+    }
+
+    private static <K, V> void link(SimpleEntry<K, V> top, SimpleEntry<K, V> left, SimpleEntry<K, V> right) {
+        top.left = left;
+        top.right = right;
+        if (left != null) {
+            left.parent = top;
+        }
+        if (right != null) {
+            right.parent = top;
+        }
+    }
+
+    private static <K, V> SimpleEntry<K, V> maximal(SimpleEntry<K, V> root) {
+        SimpleEntry<K, V> curEntry = root;
+        if (curEntry == null) {
+            return null;
+        }
+        while (curEntry.right != null) {
+            curEntry = curEntry.right;
+        }
+        return curEntry;
+    }
+
     private static <K, V> SimpleEntry<K, V> minimal(SimpleEntry<K, V> root) {
         SimpleEntry<K, V> curEntry = root;
         if (curEntry == null) {
@@ -113,6 +380,58 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return curEntry;
     }
 
+    private static <K, V> SimpleEntry<K, V> predecessor(SimpleEntry<K, V> entry) {
+        if (entry == null) {
+            return null;
+        }
+        SimpleEntry<K, V> curEntry = entry.left;
+        if (curEntry == null) {
+            curEntry = entry.parent;
+            while (curEntry != null && curEntry.left == entry) {
+                entry = curEntry;
+                curEntry = curEntry.parent;
+            }
+            return curEntry;
+        }
+        while (curEntry.right != null) {
+            curEntry = curEntry.right;
+        }
+        return curEntry;
+    }
+
+    private static <K, V> void replaceChild(SimpleEntry<K, V> oldChild, SimpleEntry<K, V> newChild) {
+        newChild.parent = oldChild.parent;
+        if (oldChild.parent != null) {
+            if (oldChild.parent.left == oldChild) {
+                oldChild.parent.left = newChild;
+            } else {
+                oldChild.parent.right = newChild;
+            }
+        }
+    }
+
+    private static <K, V> void rotateLeft(SimpleEntry<K, V> top) {
+        SimpleEntry<K, V> right = top.right;
+        top.right = right.left;
+        if (right.left != null) {
+            right.left.parent = top;
+        }
+        replaceChild(top, right);
+        right.left = top;
+        top.parent = right;
+    }
+
+    private static <K, V> void rotateRight(SimpleEntry<K, V> top) {
+        SimpleEntry<K, V> left = top.left;
+        top.left = left.right;
+        if (left.right != null) {
+            left.right.parent = top;
+        }
+        replaceChild(top, left);
+        left.right = top;
+        top.parent = left;
+    }
+
     private static <K, V> SimpleEntry<K, V> sibling(SimpleEntry<K, V> entry) {
         if (entry == null || entry.parent == null) {
             return null;
@@ -123,6 +442,35 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return entry.parent.right;
     }
 
+    // Splits off the last entry of a non-empty tree; nothing is above it
+    private static <K, V> Split<K, V> splitLast(Tree<K, V> tree) {
+        SimpleEntry<K, V> top = tree.top;
+        int childHeight = top.color == BLACK ? tree.height - 1 : tree.height;
+        Tree<K, V> left = new Tree<>(detach(top.left), childHeight);
+        Tree<K, V> right = new Tree<>(detach(top.right), childHeight);
+        top.left = null;
+        top.right = null;
+        top.parent = null;
+        if (right.top == null) {
+            return new Split<>(left, top, right);
+        }
+        Split<K, V> parts = splitLast(right);
+        return new Split<>(joinTrees(left, top, parts.below), parts.equal, parts.above);
+    }
+
+    // Size of top given the total it makes up with other; the lockstep walk ends with the smaller tree
+    private static <K, V> int sizeOf(SimpleEntry<K, V> top, SimpleEntry<K, V> other, int total) {
+        SimpleEntry<K, V> mine = minimal(top);
+        SimpleEntry<K, V> theirs = minimal(other);
+        int count = 0;
+        while (mine != null && theirs != null) {
+            mine = successor(mine);
+            theirs = successor(theirs);
+            count++;
+        }
+        return mine == null ? count : total - count;
+    }
+
     private static <K, V> SimpleEntry<K, V> successor(SimpleEntry<K, V> entry) {
         if (entry == null) {
             return null;
@@ -142,10 +490,34 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return curEntry;
     }
 
+    // Created on first use; subscribers are served on the common pool
+    public MyMapChangeStream<K, V> changes() {
+        return changes(changeStream == null ? MyMapChangeStream.DEFAULT_CAPACITY : changeStream.getCapacity());
+    }
+
+    // Capacity is the number of changes a subscriber may fall behind before it is told to resync
+    public MyMapChangeStream<K, V> changes(int capacity) {
+        if (changeStream == null) {
+            changeStream = new MyMapChangeStream<>(ForkJoinPool.commonPool(), capacity);
+        } else if (changeStream.getCapacity() < capacity) {
+            throw new IllegalStateException("Change stream already created with capacity "
+                    + changeStream.getCapacity());
+        }
+        return changeStream;
+    }
+
     @Override
     public void clear() {
         root = null;
+        first = null;
+        last = null;
         size = 0;
+        if (valueIndex != null) {
+            valueIndex.clear();
+        }
+        if (changeStream != null) {
+            changeStream.clear();
+        }
     }
 
     @Override
@@ -155,6 +527,9 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
 
     @Override
     public boolean containsValue(V value) {
+        if (valueIndex != null && value != null) {
+            return valueIndex.contains(value);
+        }
         Iterator<Entry<K, V>> iterator = new EntryIterator();
         while (iterator.hasNext()) {
             if (iterator.next().getValue().equals(value)) {
@@ -164,9 +539,22 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return false;
     }
 
+    public void difference(MyTreeMap<K, V> other) {
+        if (other == this) {
+            clear();
+            return;
+        }
+        runSetOperation(SetOperation.DIFFERENCE, other);
+    }
+
     @Override
     public Iterator<Entry<K, V>> entryIterator() {
-        return new EntryIterator();
+        return wrap(new EntryIterator());
+    }
+
+    // Snapshot of the entry with the smallest key, null when empty
+    public Entry<K, V> firstEntry() {
+        return first == null ? null : new SimpleEntry<>(first.key, first.value);
     }
 
     @Override
@@ -175,24 +563,80 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return entry == null ? null : entry.value;
     }
 
+    public void intersection(MyTreeMap<K, V> other) {
+        if (other != this) {
+            runSetOperation(SetOperation.INTERSECTION, other);
+        }
+    }
+
     @Override
     public boolean isEmpty() {
-        return size == 0;
+        return root == null;
+    }
+
+    public boolean isValueIndexed() {
+        return valueIndex != null;
+    }
+
+    public Iterator<K> keysForValue(V value) {
+        if (valueIndex != null) {
+            return valueIndex.keysFor(value);
+        }
+        ValueIndex<K, V> matching = new ValueIndex<>();
+        Iterator<Entry<K, V>> iterator = new EntryIterator();
+        while (iterator.hasNext()) {
+            Entry<K, V> curEntry = iterator.next();
+            if (Objects.equals(curEntry.getValue(), value)) {
+                matching.add(value, curEntry.getKey());
+            }
+        }
+        return matching.keysFor(value);
+    }
+
+    public Entry<K, V> lastEntry() {
+        return last == null ? null : new SimpleEntry<>(last.key, last.value);
+    }
+
+    // Removes the entry with the smallest key, rebalancing bottom-up from it
+    public Entry<K, V> pollFirstEntry() {
+        return first == null ? null : removeEdge(first);
+    }
+
+    public Entry<K, V> pollLastEntry() {
+        return last == null ? null : removeEdge(last);
     }
 
     @Override
     public V put(K key, V value) {
+        if (last != null && compare(key, last.key) > 0 || first != null && compare(key, first.key) < 0) {
+            return putEdge(key, value);
+        }
         SimpleEntry<K, V> curEntry = findInsertPoint(key);
         if (curEntry == null) {
             root = new SimpleEntry<>(key, value);
             root.color = BLACK;
+            first = root;
+            last = root;
             size++;
             modCount++;
+            if (valueIndex != null) {
+                valueIndex.add(value, key);
+            }
+            if (changeStream != null) {
+                changeStream.put(key, null, value);
+            }
             return null;
         }
         if (curEntry.key.equals(key)) {
             V toReturn = curEntry.value;
             curEntry.value = value;
+            if (valueIndex != null) {
+                valueIndex.remove(toReturn, key);
+                valueIndex.add(value, key);
+            }
+            if (changeStream != null) {
+                changeStream.put(key, toReturn, value);
+            }
             return toReturn;
         }
         SimpleEntry<K, V> toAdd = new SimpleEntry<>(key, value);
@@ -204,19 +648,46 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         }
         size++;
         modCount++;
+        if (valueIndex != null) {
+            valueIndex.add(value, key);
+        }
+        if (changeStream != null) {
+            changeStream.put(key, null, value);
+        }
         fixAfterInsert(toAdd);
         return null;
     }
 
+    // Seeks to the first key at or above fromKey, O(log n), then steps through successors
+    @Override
+    public Iterator<Entry<K, V>> rangeIterator(K fromKey, K toKey) {
+        if (fromKey != null && toKey != null && compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return wrap(new EntryIterator(fromKey == null ? first : ceilingEntry(fromKey), toKey));
+    }
+
     @Override
     public V remove(K key) {
-        if (key == null || !containsKey(key)) {
+        if (key == null) {
+            return null;
+        }
+        if (first != null && first.key.equals(key) || last != null && last.key.equals(key)) {
+            return removeEdge(first.key.equals(key) ? first : last).value;
+        }
+        if (!containsKey(key)) {
             return null;
         }
         SimpleEntry<K, V> toRemove = findDelPoint(root, key);
         V toReturn = toRemove.value;
         size--;
         modCount++;
+        if (valueIndex != null) {
+            valueIndex.remove(toReturn, key);
+        }
+        if (changeStream != null) {
+            changeStream.remove(key, toReturn);
+        }
 
         // toRemove has one child
         if (toRemove.left == null ^ toRemove.right == null) {
@@ -247,6 +718,9 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
                 removeLeaf(subst);
                 toRemove.key = subst.key;
                 toRemove.value = subst.value;
+                if (subst == first) {
+                    first = toRemove;
+                }
             }
         }
         if (root != null) {
@@ -255,40 +729,184 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return toReturn;
     }
 
+    // Removes the keys k with fromKey <= k < toKey; an empty range [k, k) removes nothing. Unlinking the
+    // range takes two splits and a join, O(log n); nodes carry no subtree sizes, so working out the new
+    // size walks the smaller of the removed and the kept parts, O(min(k, n - k)) for k removed keys.
+    // With a value index or an observed change stream every removed entry is visited anyway, O(k).
+    public void removeRange(K fromKey, K toKey) {
+        int cmp = compare(fromKey, toKey);
+        if (cmp > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        if (cmp == 0) {
+            return;
+        }
+        Split<K, V> head = splitAt(new Tree<>(detach(root), blackHeight(root)), fromKey);
+        Split<K, V> tail = splitAt(head.above, toKey);
+        int removed = -1;
+        if (isTracked()) {
+            removed = recordRemovals(head.equal) + recordRemovals(tail.below.top);
+        }
+        Tree<K, V> kept = tail.equal == null ? tail.above : joinTrees(empty(), tail.equal, tail.above);
+        root = detach(concat(head.below, kept).top);
+        if (removed >= 0) {
+            size -= removed;
+        } else {
+            int remaining = head.equal == null ? size : size - 1;
+            size = remaining - sizeOf(tail.below.top, root, remaining);
+        }
+        afterBulkChange();
+    }
+
     @Override
     public int size() {
         return size;
     }
 
-    public String toString() {
-        if (this.root == null) return "";
-        StringBuilder toReturn = new StringBuilder();
-        Queue<SimpleEntry> q = new LinkedList<>();
-        q.add(root);
-        int maxLevel = getMaxLevel(root, 0);
-        int maxKeySize = getLongestToString(root, 0) + 1;
-        for (int i = 0; i <= maxLevel; i++) {
-            int edgeOffset = (int) ((Math.pow(2, maxLevel - i - 1) - 1) * (maxKeySize + 1) + Math.ceil(maxKeySize / 2.0));
-            toReturn.append(getSpace(' ', edgeOffset));
-            int levelLength = (int) Math.pow(2, i);
-            for (int j = 0; j < levelLength; j++) {
-                SimpleEntry curEntry = q.poll();
-                if (i != 0 && j % 2 == 0) toReturn.append('[');
-                toReturn.append(curEntry == null ? getString("--", maxKeySize - 1) : getString(curEntry.toString(), maxKeySize - 1));
-                if (i != 0 && j % 2 != 0) toReturn.append(']');
-                if (j != levelLength - 1) {
-                    int nodeOffset = (int) (Math.pow(2, maxLevel - i) * (maxKeySize + 1) - maxKeySize);
-                    toReturn.append(j % 2 != 0 ? getSpace(' ', nodeOffset) : getSpace('_', nodeOffset));
+    // Keeps the keys below key and returns a map with the remaining ones. The split itself is O(log n);
+    // sizing the two maps walks the smaller one, O(min(k, n - k)), and so does moving value index entries.
+    public MyTreeMap<K, V> split(K key) {
+        Split<K, V> parts = splitAt(new Tree<>(detach(root), blackHeight(root)), key);
+        MyTreeMap<K, V> toReturn = new MyTreeMap<>(comparator);
+        toReturn.root = detach((parts.equal == null ? parts.above : joinTrees(empty(), parts.equal, parts.above)).top);
+        root = detach(parts.below.top);
+        toReturn.size = sizeOf(toReturn.root, root, size);
+        size -= toReturn.size;
+        toReturn.updateEdges();
+        afterBulkChange();
+        if (valueIndex != null) {
+            // Moved entries are dropped from this index and indexed afresh by the smaller map
+            if (toReturn.size <= size) {
+                recordRemovals(toReturn.root);
+                toReturn.setValueIndexed(true);
+            } else {
+                toReturn.valueIndex = valueIndex;
+                valueIndex = null;
+                toReturn.recordRemovals(root);
+                if (isObserved()) {
+                    recordRemovals(toReturn.root);
                 }
-                q.add(curEntry == null || curEntry.left == null ? null : curEntry.left);
-                q.add(curEntry == null || curEntry.right == null ? null : curEntry.right);
+                setValueIndexed(true);
+            }
+        } else if (isObserved()) {
+            recordRemovals(toReturn.root);
+        }
+        return toReturn;
+    }
+
+    public void setValueIndexed(boolean valueIndexed) {
+        if (!valueIndexed) {
+            valueIndex = null;
+        } else if (valueIndex == null) {
+            ValueIndex<K, V> index = new ValueIndex<>();
+            Iterator<Entry<K, V>> iterator = new EntryIterator();
+            while (iterator.hasNext()) {
+                Entry<K, V> curEntry = iterator.next();
+                index.add(curEntry.getValue(), curEntry.getKey());
             }
-            toReturn.append("\n");
+            valueIndex = index;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder toReturn = new StringBuilder();
+        try {
+            writeTree(toReturn, DEFAULT_RENDER_DEPTH);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (toReturn.length() > 0) {
+            toReturn.deleteCharAt(toReturn.length() - 1);
         }
-        toReturn.deleteCharAt(toReturn.length() - 1);
         return toReturn.toString();
     }
 
+    // Entries of other replace the ones with equal keys; other itself is left unchanged
+    public void union(MyTreeMap<K, V> other) {
+        if (other != this) {
+            runSetOperation(SetOperation.UNION, other);
+        }
+    }
+
+    public void writeTree(Appendable out, int maxDepth) throws IOException {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Illegal depth: " + maxDepth);
+        }
+        if (root != null) {
+            out.append(root.toString()).append('\n');
+            writeChildren(out, root, new StringBuilder(), 1, maxDepth);
+        }
+    }
+
+    // The value index and change stream have already been told about the entries that changed
+    private void afterBulkChange() {
+        if (root != null) {
+            root.color = BLACK;
+        }
+        updateEdges();
+        modCount++;
+    }
+
+    // Walks the structure of other, splitting this tree by its keys; subresults of disjoint subtrees run in parallel.
+    // Keys found in both trees are counted in matches, which is all the caller needs to work out the new size.
+    private Tree<K, V> apply(SetOperation operation, Tree<K, V> mine, SimpleEntry<K, V> other,
+                             int otherHeight, int parallelDepth, LongAdder matches) {
+        if (other == null) {
+            return operation == SetOperation.INTERSECTION ? empty() : mine;
+        }
+        if (mine.top == null) {
+            return operation == SetOperation.UNION ? new Tree<>(copyOf(other), otherHeight) : mine;
+        }
+        Split<K, V> parts = splitAt(mine, other.key);
+        int childHeight = other.color == BLACK ? otherHeight - 1 : otherHeight;
+        Tree<K, V> left;
+        Tree<K, V> right;
+        if (parallelDepth > 0) {
+            SetOperationTask leftTask = new SetOperationTask(operation, parts.below, other.left, childHeight,
+                    parallelDepth - 1, matches);
+            leftTask.fork();
+            right = apply(operation, parts.above, other.right, childHeight, parallelDepth - 1, matches);
+            left = leftTask.join();
+        } else {
+            left = apply(operation, parts.below, other.left, childHeight, 0, matches);
+            right = apply(operation, parts.above, other.right, childHeight, 0, matches);
+        }
+        SimpleEntry<K, V> middle = parts.equal;
+        if (middle != null) {
+            matches.increment();
+        }
+        if (operation == SetOperation.UNION) {
+            if (middle == null) {
+                middle = new SimpleEntry<>(other.key, other.value);
+            } else {
+                middle.value = other.value;
+            }
+        } else if (operation == SetOperation.DIFFERENCE) {
+            middle = null;
+        }
+        return middle == null ? concat(left, right) : joinTrees(left, middle, right);
+    }
+
+    // Entry with the smallest key at or above key, null when there is none
+    private SimpleEntry<K, V> ceilingEntry(K key) {
+        SimpleEntry<K, V> toReturn = null;
+        SimpleEntry<K, V> curEntry = root;
+        while (curEntry != null) {
+            int cmp = compare(curEntry.key, key);
+            if (cmp == 0) {
+                return curEntry;
+            }
+            if (cmp > 0) {
+                toReturn = curEntry;
+                curEntry = curEntry.left;
+            } else {
+                curEntry = curEntry.right;
+            }
+        }
+        return toReturn;
+    }
+
     private void changeColor(SimpleEntry entry) {
         entry.color = !entry.color;
     }
@@ -298,6 +916,14 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
                 ? ((Comparable) o1).compareTo(o2) : this.comparator.compare(o1, o2);
     }
 
+    private Tree<K, V> empty() {
+        return new Tree<>(null, 0);
+    }
+
+    private int countNodes(SimpleEntry<K, V> top) {
+        return top == null ? 0 : 1 + countNodes(top.left) + countNodes(top.right);
+    }
+
     private SimpleEntry<K, V> findDelPoint(SimpleEntry<K, V> curEntry, K key) {
         while (!curEntry.key.equals(key)) {
 //            System.out.println(curEntry.value);
@@ -327,7 +953,7 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         }
         SimpleEntry curElement = root;
         while (curElement != null && !curElement.key.equals(key)) {
-            if (((Comparable) curElement.key).compareTo(key) > 0) {
+            if (compare((K) curElement.key, (K) key) > 0) {
                 curElement = curElement.left;
             } else {
                 curElement = curElement.right;
@@ -360,12 +986,105 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return curEntry;
     }
 
+    // Bottom-up insert fixup; recolorings rarely climb far, so appends touch O(1) entries amortized
+    private void fixAfterAppend(SimpleEntry<K, V> toCheck) {
+        SimpleEntry<K, V> curEntry = toCheck;
+        while (curEntry != root && curEntry.parent.color == RED) {
+            SimpleEntry<K, V> parent = curEntry.parent;
+            SimpleEntry<K, V> grand = parent.parent;
+            SimpleEntry<K, V> uncle = grand.left == parent ? grand.right : grand.left;
+            if (colorOf(uncle) == RED) {
+                parent.color = BLACK;
+                uncle.color = BLACK;
+                grand.color = RED;
+                curEntry = grand;
+            } else if (grand.left == parent) {
+                if (parent.right == curEntry) {
+                    roL(parent);
+                    parent = curEntry;
+                }
+                parent.color = BLACK;
+                grand.color = RED;
+                roR(grand);
+            } else {
+                if (parent.left == curEntry) {
+                    roR(parent);
+                    parent = curEntry;
+                }
+                parent.color = BLACK;
+                grand.color = RED;
+                roL(grand);
+            }
+        }
+        root.color = BLACK;
+    }
+
     private void fixAfterInsert(SimpleEntry<K, V> toCheck) {
         if (isDoubleRed(toCheck)) {
             pullUp(toCheck);
         }
     }
 
+    // Bottom-up delete fixup for a black height deficit at toCheck, which may be null, below parent
+    private void fixAfterUnlink(SimpleEntry<K, V> toCheck, SimpleEntry<K, V> parent) {
+        SimpleEntry<K, V> curEntry = toCheck;
+        while (curEntry != root && colorOf(curEntry) == BLACK) {
+            if (curEntry == parent.left) {
+                SimpleEntry<K, V> sibl = parent.right;
+                if (sibl.color == RED) {
+                    sibl.color = BLACK;
+                    parent.color = RED;
+                    roL(parent);
+                    sibl = parent.right;
+                }
+                if (colorOf(sibl.left) == BLACK && colorOf(sibl.right) == BLACK) {
+                    sibl.color = RED;
+                    curEntry = parent;
+                    parent = curEntry.parent;
+                    continue;
+                }
+                if (colorOf(sibl.right) == BLACK) {
+                    sibl.left.color = BLACK;
+                    sibl.color = RED;
+                    roR(sibl);
+                    sibl = parent.right;
+                }
+                sibl.color = parent.color;
+                parent.color = BLACK;
+                sibl.right.color = BLACK;
+                roL(parent);
+            } else {
+                SimpleEntry<K, V> sibl = parent.left;
+                if (sibl.color == RED) {
+                    sibl.color = BLACK;
+                    parent.color = RED;
+                    roR(parent);
+                    sibl = parent.left;
+                }
+                if (colorOf(sibl.left) == BLACK && colorOf(sibl.right) == BLACK) {
+                    sibl.color = RED;
+                    curEntry = parent;
+                    parent = curEntry.parent;
+                    continue;
+                }
+                if (colorOf(sibl.left) == BLACK) {
+                    sibl.right.color = BLACK;
+                    sibl.color = RED;
+                    roL(sibl);
+                    sibl = parent.left;
+                }
+                sibl.color = parent.color;
+                parent.color = BLACK;
+                sibl.left.color = BLACK;
+                roR(parent);
+            }
+            curEntry = root;
+        }
+        if (curEntry != null) {
+            curEntry.color = BLACK;
+        }
+    }
+
     private void fixDuringInsert(SimpleEntry<K, V> toCheck) {
         if (hasRedChildren(toCheck)) {
             flipColor(toCheck);
@@ -383,40 +1102,6 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         changeColor(top.right);
     }
 
-    private int getLongestToString(SimpleEntry<K, V> curEntry, int maxSize) {
-        if (curEntry == null) return maxSize;
-        maxSize = Math.max(maxSize, curEntry.toString().length());
-        int maxSizeLeft, maxSizeRight;
-        maxSizeLeft = getLongestToString(curEntry.left, maxSize);
-        maxSizeRight = getLongestToString(curEntry.right, maxSize);
-        return Math.max(maxSize, Math.max(maxSizeLeft, maxSizeRight));
-    }
-
-    private int getMaxLevel(SimpleEntry<K, V> curEntry, int level) {
-        if (curEntry == null) return level - 1;
-        int leftLevel, rightLevel;
-        leftLevel = getMaxLevel(curEntry.left, level + 1);
-        rightLevel = getMaxLevel(curEntry.right, level + 1);
-        return Math.max(level, Math.max(leftLevel, rightLevel));
-    }
-
-    private String getSpace(char ch, int quant) {
-        StringBuilder toReturn = new StringBuilder();
-        while (quant-- > 0) {
-            toReturn.append(ch);
-        }
-        return toReturn.toString();
-    }
-
-    private String getString(String data, int size) {
-        StringBuilder toReturn = new StringBuilder();
-        for (int i = 0; i < size - data.length(); i++) {
-            toReturn.append(" ");
-        }
-        toReturn.append(data);
-        return toReturn.toString();
-    }
-
     private boolean hasBlackChildren(SimpleEntry<K, V> toCheck) {
         if (toCheck.left == null && toCheck.right == null) {
             return true;
@@ -438,6 +1123,15 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         return toCheck.color == RED && toCheck.parent.color == RED;
     }
 
+    private boolean isObserved() {
+        return changeStream != null && changeStream.isObserved();
+    }
+
+    // Whether bulk operations have to work out which entries they change
+    private boolean isTracked() {
+        return valueIndex != null || isObserved();
+    }
+
     private void pullDown(SimpleEntry<K, V> toPull, K toDelete) {
         SimpleEntry<K, V> sibl;
         // Root has two black children
@@ -526,6 +1220,115 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         }
     }
 
+    // Links a key beyond the first or last entry as that entry's outer child
+    private V putEdge(K key, V value) {
+        SimpleEntry<K, V> toAdd = new SimpleEntry<>(key, value);
+        if (compare(key, last.key) > 0) {
+            toAdd.parent = last;
+            last.right = toAdd;
+            last = toAdd;
+        } else {
+            toAdd.parent = first;
+            first.left = toAdd;
+            first = toAdd;
+        }
+        size++;
+        modCount++;
+        if (valueIndex != null) {
+            valueIndex.add(value, key);
+        }
+        if (changeStream != null) {
+            changeStream.put(key, null, value);
+        }
+        fixAfterAppend(toAdd);
+        return null;
+    }
+
+    // Reports the entries of a detached subtree as removed; returns how many there were
+    private int recordRemovals(SimpleEntry<K, V> top) {
+        int count = 0;
+        for (SimpleEntry<K, V> curEntry = minimal(top); curEntry != null; curEntry = successor(curEntry)) {
+            recordRemoval(curEntry.key, curEntry.value);
+            count++;
+        }
+        return count;
+    }
+
+    private void recordRemoval(K key, V value) {
+        if (valueIndex != null) {
+            valueIndex.remove(value, key);
+        }
+        if (isObserved()) {
+            changeStream.remove(key, value);
+        }
+    }
+
+    // Bulk operations rebuild the tree wholesale, so their per-key changes are worked out up front:
+    // O(m log n) for the m entries of other, or for intersection the n entries of this map
+    private void recordSetOperation(SetOperation operation, MyTreeMap<K, V> other) {
+        Iterator<Entry<K, V>> iterator = operation == SetOperation.INTERSECTION
+                ? new EntryIterator() : other.new EntryIterator();
+        while (iterator.hasNext()) {
+            Entry<K, V> curEntry = iterator.next();
+            if (operation == SetOperation.INTERSECTION) {
+                if (other.findEntry(curEntry.getKey()) == null) {
+                    recordRemoval(curEntry.getKey(), curEntry.getValue());
+                }
+                continue;
+            }
+            SimpleEntry<K, V> mine = findEntry(curEntry.getKey());
+            if (operation == SetOperation.UNION) {
+                V oldValue = mine == null ? null : mine.value;
+                if (valueIndex != null) {
+                    valueIndex.remove(oldValue, curEntry.getKey());
+                    valueIndex.add(curEntry.getValue(), curEntry.getKey());
+                }
+                if (isObserved()) {
+                    changeStream.put(curEntry.getKey(), oldValue, curEntry.getValue());
+                }
+            } else if (mine != null) {
+                recordRemoval(mine.key, mine.value);
+            }
+        }
+    }
+
+    // Unlinks the first or last entry; having no inner child it is replaced by its only child, if any
+    private SimpleEntry<K, V> removeEdge(SimpleEntry<K, V> toRemove) {
+        if (toRemove == first) {
+            first = successor(toRemove);
+        }
+        if (toRemove == last) {
+            last = predecessor(toRemove);
+        }
+        size--;
+        modCount++;
+        if (valueIndex != null) {
+            valueIndex.remove(toRemove.value, toRemove.key);
+        }
+        if (changeStream != null) {
+            changeStream.remove(toRemove.key, toRemove.value);
+        }
+        SimpleEntry<K, V> child = toRemove.left != null ? toRemove.left : toRemove.right;
+        SimpleEntry<K, V> parent = toRemove.parent;
+        if (child != null) {
+            child.parent = parent;
+        }
+        if (parent == null) {
+            root = child;
+        } else if (parent.left == toRemove) {
+            parent.left = child;
+        } else {
+            parent.right = child;
+        }
+        toRemove.parent = null;
+        toRemove.left = null;
+        toRemove.right = null;
+        if (toRemove.color == BLACK) {
+            fixAfterUnlink(child, parent);
+        }
+        return toRemove;
+    }
+
     private void removeLeaf(SimpleEntry<K, V> toRemove) {
         if (toRemove == root) {
             root = null;
@@ -588,6 +1391,33 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         top.left = leftInnerG;
     }
 
+    private void runSetOperation(SetOperation operation, MyTreeMap<K, V> other) {
+        if (isTracked()) {
+            recordSetOperation(operation, other);
+        }
+        Tree<K, V> mine = new Tree<>(detach(root), blackHeight(root));
+        int otherHeight = blackHeight(other.root);
+        LongAdder matches = new LongAdder();
+        Tree<K, V> result;
+        if (Math.max(mine.height, otherHeight) >= PARALLEL_BLACK_HEIGHT) {
+            int parallelDepth = 32 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism()) + 2;
+            result = ForkJoinPool.commonPool().invoke(
+                    new SetOperationTask(operation, mine, other.root, otherHeight, parallelDepth, matches));
+        } else {
+            result = apply(operation, mine, other.root, otherHeight, 0, matches);
+        }
+        root = detach(result.top);
+        int matched = matches.intValue();
+        if (operation == SetOperation.UNION) {
+            size += other.size - matched;
+        } else if (operation == SetOperation.INTERSECTION) {
+            size = matched;
+        } else {
+            size -= matched;
+        }
+        afterBulkChange();
+    }
+
     private void showBlackHeights(SimpleEntry<K, V> top, int curHeight) {
         if (top == null) {
             return;
@@ -606,6 +1436,67 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
         }
     }
 
+    // Returns the entries below key, the entry equal to key and the entries above it as detached trees
+    private Split<K, V> splitAt(Tree<K, V> tree, K key) {
+        SimpleEntry<K, V> top = tree.top;
+        if (top == null) {
+            return new Split<>(tree, null, tree);
+        }
+        int childHeight = top.color == BLACK ? tree.height - 1 : tree.height;
+        Tree<K, V> left = new Tree<>(detach(top.left), childHeight);
+        Tree<K, V> right = new Tree<>(detach(top.right), childHeight);
+        top.left = null;
+        top.right = null;
+        top.parent = null;
+        int cmp = compare(key, top.key);
+        if (cmp == 0) {
+            return new Split<>(left, top, right);
+        }
+        if (cmp < 0) {
+            Split<K, V> parts = splitAt(left, key);
+            return new Split<>(parts.below, parts.equal, joinTrees(parts.above, top, right));
+        }
+        Split<K, V> parts = splitAt(right, key);
+        return new Split<>(joinTrees(left, top, parts.below), parts.equal, parts.above);
+    }
+
+    private void updateEdges() {
+        first = minimal(root);
+        last = maximal(root);
+    }
+
+    // Entries whose setValue keeps the value index and change stream in step
+    private Iterator<Entry<K, V>> wrap(EntryIterator iter) {
+        Iterator<Entry<K, V>> toReturn = valueIndex == null ? iter : valueIndex.wrap(iter);
+        return isObserved() ? changeStream.wrap(toReturn) : toReturn;
+    }
+
+    // One line per node; subtrees below maxDepth are collapsed into a count
+    private void writeChildren(Appendable out, SimpleEntry<K, V> parent, StringBuilder prefix,
+                               int depth, int maxDepth) throws IOException {
+        SimpleEntry<K, V>[] children = new SimpleEntry[]{parent.left, parent.right};
+        for (int i = 0; i < children.length; i++) {
+            boolean last = i == children.length - 1;
+            out.append(prefix).append(last ? "`-- " : "|-- ");
+            SimpleEntry<K, V> child = children[i];
+            if (child == null) {
+                out.append("--\n");
+                continue;
+            }
+            if (depth >= maxDepth) {
+                out.append("... (").append(String.valueOf(countNodes(child))).append(" nodes)\n");
+                continue;
+            }
+            out.append(child.toString()).append('\n');
+            if (child.left != null || child.right != null) {
+                int prefixLength = prefix.length();
+                prefix.append(last ? "    " : "|   ");
+                writeChildren(out, child, prefix, depth + 1, maxDepth);
+                prefix.setLength(prefixLength);
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         MyTreeMap<Integer, Integer> treeMap = new MyTreeMap<>();
 //        MyTreeMap treeMap = new MyTreeMap((o1, o2) -> (Integer)o2 - (Integer)o1);
@@ -622,4 +1513,4 @@ public class MyTreeMap<K, V> implements MyMap<K, V> {
             System.out.println(it.next().getKey());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package maps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Randomized split/join/union/intersection/difference/removeRange/rangeIterator against
+// java.util.TreeMap. The tree shape and colors are read back from writeTree, so only the public API
+// of MyTreeMap is used.
+public final class MyTreeMapChecker {
+
+    private static final class Node {
+
+        private final int key;
+        private final boolean black;
+        private Node left;
+        private Node right;
+
+        private Node(int key, boolean black) {
+            this.key = key;
+            this.black = black;
+        }
+    }
+
+    private final String[] lines;
+    private int next;
+
+    private MyTreeMapChecker(String rendered) {
+        this.lines = rendered.isEmpty() ? new String[0] : rendered.split("\n");
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        checkBulkOperations(new Random(seed), rounds);
+        System.out.println("Bulk operations match java.util.TreeMap (seed " + seed + ")");
+    }
+
+    private static void checkBulkOperations(Random random, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            int range = 1 + random.nextInt(round < rounds / 2 ? 64 : 4096);
+            MyTreeMap<Integer, Integer> mine = new MyTreeMap<>();
+            MyTreeMap<Integer, Integer> other = new MyTreeMap<>();
+            mine.setValueIndexed(random.nextBoolean());
+            other.setValueIndexed(random.nextBoolean());
+            TreeMap<Integer, Integer> expected = new TreeMap<>();
+            TreeMap<Integer, Integer> expectedOther = new TreeMap<>();
+            // Few distinct values, so the value index holds keys sharing a value
+            for (int i = random.nextInt(range); i > 0; i--) {
+                int key = random.nextInt(range);
+                mine.put(key, i % 16);
+                expected.put(key, i % 16);
+            }
+            for (int i = random.nextInt(range); i > 0; i--) {
+                int key = random.nextInt(range);
+                other.put(key, -(i % 16));
+                expectedOther.put(key, -(i % 16));
+            }
+            int from = random.nextInt(range);
+            int to = from + random.nextInt(range - from + 1);
+            switch (random.nextInt(6)) {
+                case 0:
+                    mine.union(other);
+                    expected.putAll(expectedOther);
+                    break;
+                case 1:
+                    mine.intersection(other);
+                    expected.keySet().retainAll(expectedOther.keySet());
+                    break;
+                case 2:
+                    mine.difference(other);
+                    expected.keySet().removeAll(expectedOther.keySet());
+                    break;
+                case 3:
+                    mine.removeRange(from, to);
+                    expected.subMap(from, to).clear();
+                    break;
+                case 4:
+                    other = mine.split(from);
+                    expectedOther = new TreeMap<>(expected.tailMap(from));
+                    expected = new TreeMap<>(expected.headMap(from));
+                    break;
+                default:
+                    other.removeRange(Integer.MIN_VALUE, from + 1);
+                    mine.removeRange(from + 1, Integer.MAX_VALUE);
+                    expectedOther.headMap(from + 1).clear();
+                    expected.tailMap(from + 1).clear();
+                    mine = MyTreeMap.join(mine, other);
+                    expected.putAll(expectedOther);
+                    other = new MyTreeMap<>();
+                    expectedOther.clear();
+            }
+            checkAgainst(mine, expected);
+            checkAgainst(other, expectedOther);
+            checkRange(mine, expected, from, to);
+            checkRange(mine, expected, null, to);
+            checkRange(mine, expected, from, null);
+            for (int i = 0; i < 8; i++) {
+                int key = random.nextInt(range);
+                mine.put(key, i);
+                expected.put(key, i);
+                key = random.nextInt(range);
+                mine.remove(key);
+                expected.remove(key);
+            }
+            checkAgainst(mine, expected);
+        }
+    }
+
+    private static void checkAgainst(MyTreeMap<Integer, Integer> actual, TreeMap<Integer, Integer> expected) {
+        if (actual.size() != expected.size()) {
+            throw new IllegalStateException("Size " + actual.size() + ", expected " + expected.size());
+        }
+        Iterator<MyMap.Entry<Integer, Integer>> iterator = actual.entryIterator();
+        for (Map.Entry<Integer, Integer> curEntry : expected.entrySet()) {
+            MyMap.Entry<Integer, Integer> found = iterator.next();
+            if (!found.getKey().equals(curEntry.getKey()) || !found.getValue().equals(curEntry.getValue())) {
+                throw new IllegalStateException(found + ", expected " + curEntry);
+            }
+        }
+        if (iterator.hasNext()) {
+            throw new IllegalStateException("Unexpected entry " + iterator.next());
+        }
+        MyMap.Entry<Integer, Integer> first = actual.firstEntry();
+        MyMap.Entry<Integer, Integer> last = actual.lastEntry();
+        if (!Objects.equals(first == null ? null : first.getKey(), expected.isEmpty() ? null : expected.firstKey())
+                || !Objects.equals(last == null ? null : last.getKey(), expected.isEmpty() ? null : expected.lastKey())) {
+            throw new IllegalStateException("Stale first or last entry");
+        }
+        if (actual.isValueIndexed()) {
+            checkValueIndex(actual, expected);
+        }
+        StringBuilder rendered = new StringBuilder();
+        try {
+            actual.writeTree(rendered, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        MyTreeMapChecker checker = new MyTreeMapChecker(rendered.toString());
+        Node root = checker.lines.length == 0 ? null : checker.readNode(0);
+        if (root != null && !root.black) {
+            throw new IllegalStateException("Root is not black");
+        }
+        List<Integer> keys = new ArrayList<>();
+        checkSubtree(root, keys);
+        if (!keys.equals(new ArrayList<>(expected.keySet()))) {
+            throw new IllegalStateException("Tree shape out of order: " + keys);
+        }
+    }
+
+    private static void checkRange(MyTreeMap<Integer, Integer> actual, TreeMap<Integer, Integer> expected,
+                                   Integer fromKey, Integer toKey) {
+        Map<Integer, Integer> range = fromKey == null ? expected.headMap(toKey)
+                : toKey == null ? expected.tailMap(fromKey) : expected.subMap(fromKey, toKey);
+        List<Integer> keys = new ArrayList<>();
+        for (Iterator<MyMap.Entry<Integer, Integer>> iter = actual.rangeIterator(fromKey, toKey); iter.hasNext(); ) {
+            keys.add(iter.next().getKey());
+        }
+        if (!keys.equals(new ArrayList<>(range.keySet()))) {
+            throw new IllegalStateException("Range [" + fromKey + ", " + toKey + "): " + keys
+                    + ", expected " + range.keySet());
+        }
+    }
+
+    private static void checkValueIndex(MyTreeMap<Integer, Integer> actual, TreeMap<Integer, Integer> expected) {
+        for (int value = -16; value < 16; value++) {
+            Set<Integer> keys = new HashSet<>();
+            for (Iterator<Integer> iter = actual.keysForValue(value); iter.hasNext(); ) {
+                keys.add(iter.next());
+            }
+            Set<Integer> expectedKeys = new HashSet<>();
+            for (Map.Entry<Integer, Integer> curEntry : expected.entrySet()) {
+                if (curEntry.getValue() == value) {
+                    expectedKeys.add(curEntry.getKey());
+                }
+            }
+            if (!keys.equals(expectedKeys) || actual.containsValue(value) != !expectedKeys.isEmpty()) {
+                throw new IllegalStateException("Value index for " + value + ": " + keys + ", expected " + expectedKeys);
+            }
+        }
+    }
+
+    // Black height of a subtree free of double reds; keys are collected in order
+    private static int checkSubtree(Node top, List<Integer> keys) {
+        if (top == null) {
+            return 0;
+        }
+        for (Node child : new Node[]{top.left, top.right}) {
+            if (child != null && !top.black && !child.black) {
+                throw new IllegalStateException("Double red at " + child.key);
+            }
+        }
+        int height = checkSubtree(top.left, keys);
+        keys.add(top.key);
+        if (checkSubtree(top.right, keys) != height) {
+            throw new IllegalStateException("Unequal black heights below " + top.key);
+        }
+        return top.black ? height + 1 : height;
+    }
+
+    // writeTree prints a node, then both its children one level deeper if it has any; "--" is an empty child
+    private Node readNode(int depth) {
+        String line = lines[next++].substring(depth * 4);
+        if (line.equals("--")) {
+            return null;
+        }
+        Node node = new Node(Integer.parseInt(line.substring(0, line.length() - 3)), line.endsWith("(b)"));
+        if (next < lines.length && depthOf(lines[next]) == depth + 1) {
+            node.left = readNode(depth + 1);
+            node.right = readNode(depth + 1);
+        }
+        return node;
+    }
+
+    private static int depthOf(String line) {
+        // Each level is indented by four characters ending in "|-- " or "`-- "
+        int connector = line.indexOf("-- ");
+        return connector < 0 ? 0 : connector / 4 + 1;
+    }
+}